@@ -0,0 +1,83 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uw.cs.biglearn.clickprediction.preprocess.SyntheticData;
+
+/**
+ * One SGD step of LogisticRegressionWithHashing on a hashed instance: the
+ * delayed regularization of the touched weights followed by the gradient
+ * update, through the helpers train() calls. The weight vector grows with
+ * dim, so the large dims measure cache misses rather than arithmetic.
+ *
+ * @author haijieg
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashedSgdBenchmark {
+	private static final int NUM_INSTANCES = 1 << 12;
+	private static final double STEP = 0.01;
+	private static final double LAMBDA = 0.001;
+
+	@Param({ "97", "12289", "1572869" })
+	int dim;
+
+	@Param({ "false", "true" })
+	boolean personal;
+
+	private LogisticRegressionWithHashing lr;
+	private LogisticRegressionWithHashing.Weights weights;
+	private HashedDataInstance[] instances;
+	private double logDecay;
+	private int next;
+	private int count;
+
+	@Setup
+	public void setup() {
+		String[] lines = new SyntheticData(SyntheticData.KDD_ROWS, 42)
+				.instanceLines(new Random(42), NUM_INSTANCES, true);
+		instances = new HashedDataInstance[NUM_INSTANCES];
+		for (int i = 0; i < NUM_INSTANCES; i++)
+			instances[i] = new HashedDataInstance(lines[i], true, dim,
+					personal);
+		lr = new LogisticRegressionWithHashing();
+		weights = lr.new Weights(dim);
+		logDecay = Math.log1p(-STEP * LAMBDA);
+	}
+
+	@Benchmark
+	public LogisticRegressionWithHashing.Weights step() {
+		HashedDataInstance instance = instances[next];
+		next = (next + 1) & (NUM_INSTANCES - 1);
+		lr.performDelayedRegularization(instance.hashedIndex,
+				instance.numHashed, weights, count, logDecay);
+		lr.updateWeights(weights, instance, STEP, LAMBDA);
+		count++;
+		return weights;
+	}
+
+	@Benchmark
+	public double product() {
+		HashedDataInstance instance = instances[next];
+		next = (next + 1) & (NUM_INSTANCES - 1);
+		return lr.computeWeightFeatureProduct(weights, instance);
+	}
+}
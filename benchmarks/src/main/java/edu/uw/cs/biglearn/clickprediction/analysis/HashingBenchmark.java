@@ -0,0 +1,90 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uw.cs.biglearn.clickprediction.preprocess.SyntheticData;
+import edu.uw.cs.biglearn.clickprediction.util.HashUtil;
+
+/**
+ * Feature hashing of already parsed instances, plain and personalized:
+ * HashedDataInstance.hash, and the raw HashUtil calls it is made of.
+ *
+ * @author haijieg
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+	private static final int NUM_INSTANCES = 1 << 12;
+
+	@Param({ "97", "12289", "1572869" })
+	int dim;
+
+	@Param({ "false", "true" })
+	boolean personal;
+
+	private DataInstance[] instances;
+	private int next;
+	private HashedDataInstance hashed;
+
+	@Setup
+	public void setup() {
+		String[] lines = new SyntheticData(SyntheticData.KDD_ROWS, 42)
+				.instanceLines(new Random(42), NUM_INSTANCES, true);
+		instances = new DataInstance[NUM_INSTANCES];
+		for (int i = 0; i < NUM_INSTANCES; i++)
+			instances[i] = new DataInstance(lines[i], true);
+		hashed = new HashedDataInstance(dim, personal);
+	}
+
+	private DataInstance nextInstance() {
+		DataInstance instance = instances[next];
+		next = (next + 1) & (NUM_INSTANCES - 1);
+		return instance;
+	}
+
+	@Benchmark
+	public HashedDataInstance hash() {
+		hashed.hash(nextInstance());
+		return hashed;
+	}
+
+	/**
+	 * The hash functions alone, without merging collisions.
+	 */
+	@Benchmark
+	public long hashFeatures() {
+		DataInstance instance = nextInstance();
+		long sum = 0;
+		for (int i = 0; i < instance.numTokens; i++) {
+			long hash = HashUtil.hashFeature(instance.tokens[i]);
+			sum += HashUtil.hashToSign(hash) * HashUtil.hashToRange(hash, dim);
+		}
+		if (personal) {
+			for (int i = 0; i < instance.numTokens; i++) {
+				long hash = HashUtil.hashFeature(instance.userid,
+						instance.tokens[i]);
+				sum += HashUtil.hashToSign(hash)
+						* HashUtil.hashToRange(hash, dim);
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,84 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uw.cs.biglearn.clickprediction.preprocess.SyntheticData;
+
+/**
+ * Parsing one line of the joined data set: a new DataInstance per line (as
+ * DataSet.nextInstance does), a reused DataInstance (as DataSet.advance
+ * does), and parsing plus hashing into a HashedDataInstance.
+ *
+ * @author haijieg
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	private static final int NUM_LINES = 1 << 14;
+
+	@Param({ "12289" })
+	int dim;
+
+	@Param({ "false", "true" })
+	boolean personal;
+
+	private String[] lines;
+	private int next;
+	private DataInstance instance;
+	private HashedDataInstance hashed;
+
+	@Setup
+	public void setup() {
+		lines = new SyntheticData(SyntheticData.KDD_ROWS, 42).instanceLines(
+				new Random(42), NUM_LINES, true);
+		instance = new DataInstance();
+		hashed = new HashedDataInstance(dim, personal);
+	}
+
+	private String nextLine() {
+		String line = lines[next];
+		next = (next + 1) & (NUM_LINES - 1);
+		return line;
+	}
+
+	@Benchmark
+	public DataInstance parseNew() {
+		return new DataInstance(nextLine(), true);
+	}
+
+	@Benchmark
+	public DataInstance parseReused() {
+		instance.parse(nextLine(), true);
+		return instance;
+	}
+
+	@Benchmark
+	public HashedDataInstance parseHashedNew() {
+		return new HashedDataInstance(nextLine(), true, dim, personal);
+	}
+
+	@Benchmark
+	public HashedDataInstance parseHashedReused() {
+		instance.parse(nextLine(), true);
+		hashed.hash(instance);
+		return hashed;
+	}
+}
@@ -0,0 +1,80 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uw.cs.biglearn.clickprediction.preprocess.SyntheticData;
+
+/**
+ * One SGD step of LogisticRegression on a parsed instance: the delayed
+ * regularization of the touched token weights followed by the gradient
+ * update, through the helpers train() calls. The vocabulary plays the role
+ * of the dimension: the weight table is warmed up with a pass over the
+ * instances, so it holds about as many tokens as the instances use.
+ *
+ * @author haijieg
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenSgdBenchmark {
+	private static final int NUM_INSTANCES = 1 << 14;
+	private static final double STEP = 0.01;
+	private static final double LAMBDA = 0.001;
+
+	@Param({ "10000", "1000000" })
+	int vocabulary;
+
+	private LogisticRegression lr;
+	private LogisticRegression.Weights weights;
+	private DataInstance[] instances;
+	private int next;
+	private int count;
+
+	@Setup
+	public void setup() {
+		String[] lines = new SyntheticData(SyntheticData.KDD_ROWS, vocabulary,
+				42).instanceLines(new Random(42), NUM_INSTANCES, true);
+		instances = new DataInstance[NUM_INSTANCES];
+		for (int i = 0; i < NUM_INSTANCES; i++)
+			instances[i] = new DataInstance(lines[i], true);
+		lr = new LogisticRegression();
+		weights = lr.new Weights();
+		for (int i = 0; i < NUM_INSTANCES; i++)
+			step();
+	}
+
+	@Benchmark
+	public LogisticRegression.Weights step() {
+		DataInstance instance = instances[next];
+		next = (next + 1) & (NUM_INSTANCES - 1);
+		lr.performDelayedRegularization(instance.tokens, instance.numTokens,
+				weights, count, STEP, LAMBDA);
+		lr.updateWeights(weights, instance, STEP, LAMBDA, count);
+		count++;
+		return weights;
+	}
+
+	@Benchmark
+	public double product() {
+		DataInstance instance = instances[next];
+		next = (next + 1) & (NUM_INSTANCES - 1);
+		return lr.computeWeightFeatureProduct(weights, instance);
+	}
+}
@@ -0,0 +1,48 @@
+package edu.uw.cs.biglearn.clickprediction.preprocess;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing one line of a feature file (id, tab, tokens separated by '|') into
+ * its sorted unique tokens, as Features does while loading the token tables.
+ *
+ * @author haijieg
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseFeatureBenchmark {
+	private static final int NUM_LINES = 1 << 14;
+
+	private String[] lines;
+	private int next;
+
+	@Setup
+	public void setup() {
+		lines = new SyntheticData(SyntheticData.KDD_ROWS, 42).featureLines(
+				new Random(42), NUM_LINES);
+	}
+
+	@Benchmark
+	public int[] parseFeature() {
+		String line = lines[next];
+		next = (next + 1) & (NUM_LINES - 1);
+		return Features.parseFeature(line);
+	}
+}
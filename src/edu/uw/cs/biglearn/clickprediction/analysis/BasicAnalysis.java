@@ -1,5 +1,6 @@
 package edu.uw.cs.biglearn.clickprediction.analysis;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -14,10 +15,11 @@ public class BasicAnalysis {
 		System.err.println("Find uniqe tokens");
 		Set<Integer> tokens = new HashSet<Integer>();
 		int count = 0;
+		DataInstance instance = new DataInstance();
 		while (dataset.hasNext()) {
-			DataInstance instance = dataset.nextInstance();
-			for (int token : instance.tokens)
-				tokens.add(token);
+			dataset.advance(instance);
+			for (int i = 0; i < instance.numTokens; i++)
+				tokens.add(instance.tokens[i]);
 			count++;
 			if (count % 100000 == 0) {
 				System.err.println("Processed " + count + " lines");
@@ -37,8 +39,9 @@ public class BasicAnalysis {
 		System.err.println("Find uniqe users");
 		int count = 0;
 		Set<Integer> users = new HashSet<Integer>();
+		DataInstance instance = new DataInstance();
 		while (dataset.hasNext()) {
-			DataInstance instance = dataset.nextInstance();
+			dataset.advance(instance);
 			if (instance.userid != 0)
 				users.add(instance.userid);
 
@@ -51,6 +54,23 @@ public class BasicAnalysis {
 		return users;
 	}
 
+	/**
+	 * @return the ids of the known (non-zero) users in the dataset, as a
+	 *         set of bits.
+	 */
+	public BitSet uniqUserBits(DataSet dataset) {
+		System.err.println("Find uniqe users");
+		BitSet users = new BitSet();
+		DataInstance instance = new DataInstance();
+		while (dataset.hasNext()) {
+			dataset.advance(instance);
+			if (instance.userid > 0)
+				users.set(instance.userid);
+		}
+		dataset.reset();
+		return users;
+	}
+
 	/**
 	 * @return the average CTR for the training set.
 	 */
@@ -58,8 +78,9 @@ public class BasicAnalysis {
 		System.err.println("Compute average ctr");
 		int count = 0;
 		int clicks = 0;
+		DataInstance instance = new DataInstance();
 		while (dataset.hasNext()) {
-			DataInstance instance = dataset.nextInstance();
+			dataset.advance(instance);
 			clicks += instance.clicked;
 			count++;
 			if (count % 100000 == 0) {
@@ -0,0 +1,230 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A dataset stored in a compact binary columnar format, so that repeated
+ * passes over the data do not have to parse the text file again.
+ *
+ * The dataset is a directory with one file per column:
+ *
+ * <pre>
+ * meta.bin     magic, version, hasLabel, number of rows, number of tokens
+ * label.bin    byte per row (0 or 1, -1 for test data)
+ * depth.bin    byte per row
+ * position.bin byte per row
+ * user.bin     int per row
+ * gender.bin   byte per row (already mapped to {-1, 0, 1})
+ * age.bin      byte per row
+ * offsets.bin  long per row plus one; tokens of row i are [offsets[i], offsets[i+1])
+ * tokens.bin   int per token
+ * </pre>
+ *
+ * All values are written big endian with DataOutputStream. Use
+ * {@link #convert(DataSet, String)} to create the directory from the text
+ * format once.
+ *
+ * @author haijieg
+ *
+ */
+public class BinaryDataSet extends DataSet {
+	public static final int MAGIC = 0x434c4b31; // "CLK1"
+	public static final int VERSION = 1;
+
+	private static final String[] COLUMNS = { "label.bin", "depth.bin",
+			"position.bin", "user.bin", "gender.bin", "age.bin", "offsets.bin",
+			"tokens.bin" };
+
+	public long numTokens;
+	private DataInputStream label, depth, position, user, gender, age,
+			offsets, tokens;
+	private long lastOffset;
+
+	/**
+	 * Opens a binary dataset from the given directory.
+	 *
+	 * @param dir
+	 *            Directory created by {@link #convert(DataSet, String)}.
+	 * @param size
+	 *            The size of the dataset, can be SMALLER than the number of
+	 *            rows on disk.
+	 * @throws IOException
+	 */
+	public BinaryDataSet(String dir, int size) throws IOException {
+		super(dir, false);
+		DataInputStream meta = open("meta.bin");
+		try {
+			if (meta.readInt() != MAGIC)
+				throw new IOException("Not a binary dataset: " + dir);
+			int version = meta.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported binary dataset version "
+						+ version + " in " + dir);
+			hasLabel = meta.readBoolean();
+			this.size = Math.min(size, meta.readInt());
+			numTokens = meta.readLong();
+		} finally {
+			meta.close();
+		}
+		openColumns();
+	}
+
+	private DataInputStream open(String column) throws FileNotFoundException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(
+				new File(path, column)), 1 << 16));
+	}
+
+	private void openColumns() throws IOException {
+		label = open(COLUMNS[0]);
+		depth = open(COLUMNS[1]);
+		position = open(COLUMNS[2]);
+		user = open(COLUMNS[3]);
+		gender = open(COLUMNS[4]);
+		age = open(COLUMNS[5]);
+		offsets = open(COLUMNS[6]);
+		tokens = open(COLUMNS[7]);
+		lastOffset = offsets.readLong();
+	}
+
+	private void closeColumns() throws IOException {
+		for (DataInputStream in : new DataInputStream[] { label, depth,
+				position, user, gender, age, offsets, tokens })
+			in.close();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return counter < size;
+	}
+
+	@Override
+	public DataInstance nextInstance() {
+		return advance(new DataInstance());
+	}
+
+	@Override
+	public DataInstance advance(DataInstance reuse) {
+		counter++;
+		try {
+			reuse.clicked = label.readByte();
+			reuse.depth = depth.readByte();
+			reuse.position = position.readByte();
+			reuse.userid = user.readInt();
+			reuse.gender = gender.readByte();
+			reuse.age = age.readByte();
+			long end = offsets.readLong();
+			int n = (int) (end - lastOffset);
+			reuse.ensureCapacity(n);
+			for (int i = 0; i < n; i++)
+				reuse.tokens[i] = tokens.readInt();
+			reuse.numTokens = n;
+			lastOffset = end;
+			return reuse;
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupted binary dataset " + path,
+					e);
+		}
+	}
+
+	@Override
+	public void reset() {
+		counter = 0;
+		try {
+			closeColumns();
+			openColumns();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Converts a text dataset to the binary format. The text dataset is reset
+	 * afterwards.
+	 *
+	 * @param text
+	 * @param dir
+	 *            Output directory, created if it does not exist.
+	 * @return the number of converted rows.
+	 * @throws IOException
+	 */
+	public static int convert(DataSet text, String dir) throws IOException {
+		File outdir = new File(dir);
+		if (!outdir.isDirectory() && !outdir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+		DataOutputStream[] out = new DataOutputStream[COLUMNS.length];
+		for (int i = 0; i < COLUMNS.length; i++)
+			out[i] = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(outdir, COLUMNS[i])), 1 << 16));
+
+		System.err.println("Converting " + text.path + " to " + dir);
+		int count = 0;
+		long ntokens = 0;
+		out[6].writeLong(0);
+		DataInstance instance = new DataInstance();
+		while (text.hasNext()) {
+			text.advance(instance);
+			out[0].writeByte(toByte(instance.clicked, "click"));
+			out[1].writeByte(toByte(instance.depth, "depth"));
+			out[2].writeByte(toByte(instance.position, "position"));
+			out[3].writeInt(instance.userid);
+			out[4].writeByte(toByte(instance.gender, "gender"));
+			out[5].writeByte(toByte(instance.age, "age"));
+			for (int i = 0; i < instance.numTokens; i++)
+				out[7].writeInt(instance.tokens[i]);
+			ntokens += instance.numTokens;
+			out[6].writeLong(ntokens);
+			count++;
+			if (count % 100000 == 0)
+				System.err.println("Converted " + count + " lines");
+		}
+		for (DataOutputStream column : out)
+			column.close();
+		text.reset();
+
+		DataOutputStream meta = new DataOutputStream(new FileOutputStream(
+				new File(outdir, "meta.bin")));
+		meta.writeInt(MAGIC);
+		meta.writeInt(VERSION);
+		meta.writeBoolean(text.hasLabel);
+		meta.writeInt(count);
+		meta.writeLong(ntokens);
+		meta.close();
+		System.err.println("Done. Total converted instances: " + count);
+		return count;
+	}
+
+	/**
+	 * @return the value as a byte.
+	 * @throws IllegalArgumentException
+	 *             if it does not fit in a byte.
+	 */
+	static byte toByte(int value, String field) {
+		if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE)
+			throw new IllegalArgumentException(field + " out of range: "
+					+ value);
+		return (byte) value;
+	}
+
+	/**
+	 * Convert the training and testing data to the binary format.
+	 * Usage: BinaryDataSet input.txt outputdir [train|test]
+	 */
+	public static void main(String args[]) throws IOException {
+		if (args.length != 3) {
+			System.err
+					.println("Usage: BinaryDataSet input.txt outputdir [train|test]");
+			System.exit(1);
+		}
+		DataSet text = new DataSet(args[0], args[2].equals("train"),
+				Integer.MAX_VALUE);
+		convert(text, args[1]);
+	}
+}
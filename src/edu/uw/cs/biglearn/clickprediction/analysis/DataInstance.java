@@ -1,5 +1,8 @@
 package edu.uw.cs.biglearn.clickprediction.analysis;
 
+import java.util.Arrays;
+
+import edu.uw.cs.biglearn.clickprediction.util.ParseUtil;
 import edu.uw.cs.biglearn.clickprediction.util.StringUtil;
 
 /**
@@ -15,8 +18,10 @@ public class DataInstance {
 	// Feature of the page and ad
 	int depth; // depth of the session.
 	int position; // position of the ad.
-	int[] tokens; // list of token ids.
-	
+	int[] tokens; // list of token ids, only the first numTokens are valid.
+	int numTokens;
+
+	private final int[] parsePos = new int[1]; // read position while parsing a line.
 
 	// Feature of the user
 	int userid;
@@ -34,21 +39,107 @@ public class DataInstance {
 	 *            otherwise.
 	 */
 	public DataInstance(String line, boolean hasLabel) {
-		String[] fields = line.split("\\|");
-		int offset = 0;
+		this();
+		parse(line, hasLabel);
+	}
+
+	/**
+	 * Create an empty DataInstance, to be filled by
+	 * {@link DataSet#advance(DataInstance)}.
+	 */
+	public DataInstance() {
+		tokens = new int[16];
+	}
+
+	/**
+	 * Fill this instance from the input string, reusing the token buffer.
+	 * 
+	 * @param line
+	 * @param hasLabel
+	 *            True if the input string is from training data. False
+	 *            otherwise.
+	 */
+	void parse(String line, boolean hasLabel) {
+		parsePos[0] = 0;
 		if (hasLabel) {
-			clicked = Integer.valueOf(fields[0]);
-			offset = 1;
+			clicked = parseInt(line, '|');
 		} else {
 			clicked = -1;
 		}
-		depth = Integer.valueOf(fields[offset + 0]);
-		position = Integer.valueOf(fields[offset + 1]);
-		userid = Integer.valueOf(fields[offset + 2]);
-		gender = Integer.valueOf(fields[offset + 3]);
+		depth = parseInt(line, '|');
+		position = parseInt(line, '|');
+		userid = parseInt(line, '|');
+		gender = parseInt(line, '|');
 		if (gender != 0) gender = (int)((gender - 1.5) * 2.0); // map gender from {0,1,2} to {-1, 1}
-		age = Integer.valueOf(fields[offset + 4]);
-		tokens = StringUtil.mapArrayStrToInt(fields[offset+5].split(","));
+		age = parseInt(line, '|');
+		numTokens = 0;
+		while (parsePos[0] < line.length()) {
+			ensureCapacity(numTokens + 1);
+			tokens[numTokens++] = parseInt(line, ',');
+		}
+	}
+
+	/**
+	 * Parses a (possibly negative) integer starting at parsePos and moves
+	 * parsePos past the following separator. Like Integer.valueOf, throws
+	 * NumberFormatException on an empty or overflowing field.
+	 * 
+	 * @param line
+	 * @param separator
+	 *            The only separator allowed after the field, besides the end
+	 *            of the line.
+	 */
+	private int parseInt(String line, char separator) {
+		int value = ParseUtil.parseInt(line, parsePos);
+		int i = parsePos[0];
+		if (i < line.length() && line.charAt(i) != separator)
+			throw new NumberFormatException("For input string: \"" + line + "\"");
+		parsePos[0] = i + 1;
+		return value;
+	}
+
+	/**
+	 * Grows the token buffer to hold at least n tokens.
+	 * 
+	 * @param n
+	 */
+	void ensureCapacity(int n) {
+		if (n > tokens.length)
+			tokens = Arrays.copyOf(tokens, Math.max(n, tokens.length * 2));
+	}
+
+	/**
+	 * Fill this instance with a copy of the other one, reusing the token
+	 * buffer.
+	 * 
+	 * @param other
+	 */
+	void copyFrom(DataInstance other) {
+		clicked = other.clicked;
+		depth = other.depth;
+		position = other.position;
+		userid = other.userid;
+		gender = other.gender;
+		age = other.age;
+		ensureCapacity(other.numTokens);
+		System.arraycopy(other.tokens, 0, tokens, 0, other.numTokens);
+		numTokens = other.numTokens;
+	}
+
+	/**
+	 * Create a DataInstance from already parsed fields. The gender must be
+	 * already mapped to {-1, 0, 1}.
+	 */
+	DataInstance(int clicked, int depth, int position, int userid,
+			int gender, int age, int[] tokens) {
+		this.clicked = clicked;
+		this.depth = depth;
+		this.position = position;
+		this.userid = userid;
+		this.gender = gender;
+		this.age = age;
+		this.tokens = tokens;
+		this.numTokens = tokens.length;
 	}
 
 	@Override
@@ -59,7 +150,7 @@ public class DataInstance {
 		}
 		builder.append(depth + "|" + position + "|");
 		builder.append(userid + "|" + gender + "|" + age + "|");
-		builder.append(StringUtil.implode(tokens, ","));
+		builder.append(StringUtil.implode(tokens, numTokens, ","));
 		return builder.toString();
 	}
 }
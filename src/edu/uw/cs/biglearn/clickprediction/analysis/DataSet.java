@@ -1,9 +1,12 @@
 package edu.uw.cs.biglearn.clickprediction.analysis;
 
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.NoSuchElementException;
+
+import edu.uw.cs.biglearn.clickprediction.util.IOUtil;
+import edu.uw.cs.biglearn.clickprediction.util.TrainingMetrics;
 
 /**
  * This class represents a dataset object.
@@ -18,33 +21,75 @@ public class DataSet {
 	public boolean hasLabel;
 	public int size;
 	public int counter;
-	private Scanner sc;
+	// not a Scanner, which takes a read error for the end of the file.
+	private BufferedReader reader;
+	private String line; // the line read ahead by hasNext(), or null
+	private DataInstance scratch; // parse buffer for advance(HashedDataInstance).
 
 	/**
 	 * Creates a dataset from the given path.
 	 * 
 	 * @param path
-	 *            Path to the data file living on the disk.
+	 *            Path to the data file living on the disk, possibly
+	 *            compressed (see IOUtil.open).
 	 * @param isTraining
 	 *            True if the input is training data.
 	 * @param size
 	 *            The size of the dataset, can be SMALLER than the size of the
 	 *            input.
-	 * @throws FileNotFoundException
+	 * @throws IOException
 	 */
 	public DataSet(String path, boolean isTraining, int size)
-			throws FileNotFoundException {
+			throws IOException {
 		this.path = path;
 		this.hasLabel = isTraining;
 		this.size = size;
-		sc = new Scanner(new BufferedReader(new FileReader(path)));
+		reader = open(path);
+	}
+
+	private static BufferedReader open(String path) throws IOException {
+		return new BufferedReader(new InputStreamReader(IOUtil.open(path)));
+	}
+
+	/**
+	 * Creates a dataset without opening the text file. Used by subclasses that
+	 * read the data from a different on-disk format; they must set the size.
+	 * 
+	 * @param path
+	 * @param isTraining
+	 *            True if the input is training data.
+	 */
+	protected DataSet(String path, boolean isTraining) {
+		this.path = path;
+		this.hasLabel = isTraining;
 	}
 
 	/**
 	 * @return True if the dataset has more data.
+	 * @throws IllegalStateException
+	 *             if the file cannot be read, e.g. it is truncated.
 	 */
 	public boolean hasNext() {
-		return (counter < size) && sc.hasNextLine();
+		return (counter < size) && peekLine() != null;
+	}
+
+	private String peekLine() {
+		if (line == null) {
+			try {
+				line = reader.readLine();
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read " + path, e);
+			}
+		}
+		return line;
+	}
+
+	private String nextLine() {
+		String next = peekLine();
+		if (next == null)
+			throw new NoSuchElementException();
+		line = null;
+		return next;
 	}
 
 	/**
@@ -52,7 +97,20 @@ public class DataSet {
 	 */
 	public DataInstance nextInstance() {
 		counter++;
-		return new DataInstance(sc.nextLine(), hasLabel);
+		return new DataInstance(nextLine(), hasLabel);
+	}
+
+	/**
+	 * Fill the caller owned instance with the next data instance. Unlike
+	 * nextInstance() this reuses the instance and its token buffer.
+	 * 
+	 * @param reuse
+	 * @return the reused instance.
+	 */
+	public DataInstance advance(DataInstance reuse) {
+		counter++;
+		reuse.parse(nextLine(), hasLabel);
+		return reuse;
 	}
 
 	/**
@@ -60,9 +118,45 @@ public class DataSet {
 	 */
 	public HashedDataInstance nextHashedInstance(int featuredim,
 			boolean personal) {
-		counter++;
-		return new HashedDataInstance(sc.nextLine(), hasLabel, featuredim,
-				personal);
+		return new HashedDataInstance(nextInstance(), featuredim, personal);
+	}
+
+	/**
+	 * Fill the caller owned instance with the next data instance with hashed
+	 * feature, using the dimension and personalization of the instance.
+	 * 
+	 * @param reuse
+	 * @return the reused instance.
+	 */
+	public HashedDataInstance advance(HashedDataInstance reuse) {
+		advance(reuse, null, 0);
+		return reuse;
+	}
+
+	/**
+	 * Same as advance(HashedDataInstance), which calls this method, also
+	 * timing the reading and the hashing of the row as stages of the
+	 * current row of the metrics. A dataset that has the rows hashed ahead
+	 * overrides this method, and times the copy as the read.
+	 * 
+	 * @param reuse
+	 * @param metrics
+	 *            Null when the row is not timed.
+	 * @param t
+	 *            The start of the read, from System.nanoTime().
+	 * @return the end of the last stage, t if the row is not timed.
+	 */
+	public long advance(HashedDataInstance reuse, TrainingMetrics metrics,
+			long t) {
+		if (scratch == null)
+			scratch = new DataInstance();
+		advance(scratch);
+		if (metrics != null)
+			t = metrics.lap(TrainingMetrics.READ, t);
+		reuse.hash(scratch);
+		if (metrics != null)
+			t = metrics.lap(TrainingMetrics.HASH, t);
+		return t;
 	}
 
 	/**
@@ -71,10 +165,15 @@ public class DataSet {
 	 */
 	public void reset() {
 		counter = 0;
-		sc.close();
+		line = null;
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// reopened anyway.
+		}
 		try {
-			sc = new Scanner(new BufferedReader(new FileReader(path)));
-		} catch (FileNotFoundException e) {
+			reader = open(path);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
@@ -0,0 +1,104 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.util.Arrays;
+
+/**
+ * A block of hashed instances in compressed sparse row form, scored at once by
+ * {@link LogisticRegressionWithHashing#scoreBatch}. The hashed features of row
+ * r are indices[k] with value values[k], for offsets[r] <= k < offsets[r+1];
+ * the dense fields are one column each.
+ *
+ * A batch is allocated once and refilled with fill() for every block of the
+ * dataset.
+ *
+ * @author haijieg
+ *
+ */
+public class HashedBatch {
+	int size;
+	int[] offsets;
+	int[] indices;
+	int[] values;
+	int[] depth;
+	int[] position;
+	int[] age;
+	int[] gender;
+	int[] userid;
+
+	/**
+	 * @param capacity
+	 *            The maximum number of rows of the batch.
+	 */
+	public HashedBatch(int capacity) {
+		offsets = new int[capacity + 1];
+		indices = new int[capacity * 32];
+		values = new int[capacity * 32];
+		depth = new int[capacity];
+		position = new int[capacity];
+		age = new int[capacity];
+		gender = new int[capacity];
+		userid = new int[capacity];
+	}
+
+	/**
+	 * @return the number of rows in the batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return depth.length;
+	}
+
+	public int userid(int row) {
+		return userid[row];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Appends a copy of the instance. The batch must not be full.
+	 *
+	 * @param instance
+	 */
+	public void add(HashedDataInstance instance) {
+		int row = size;
+		int start = offsets[row];
+		int end = start + instance.numHashed;
+		if (end > indices.length) {
+			int capacity = Math.max(end, 2 * indices.length);
+			indices = Arrays.copyOf(indices, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		System.arraycopy(instance.hashedIndex, 0, indices, start,
+				instance.numHashed);
+		System.arraycopy(instance.hashedValue, 0, values, start,
+				instance.numHashed);
+		offsets[row + 1] = end;
+		depth[row] = instance.depth;
+		position[row] = instance.position;
+		age[row] = instance.age;
+		gender[row] = instance.gender;
+		userid[row] = instance.userid;
+		size++;
+	}
+
+	/**
+	 * Refills the batch with the next rows of the dataset.
+	 *
+	 * @param dataset
+	 * @param scratch
+	 *            The instance to hash the rows into, which decides the
+	 *            dimension and personalization.
+	 * @return the number of rows read, 0 at the end of the dataset.
+	 */
+	public int fill(DataSet dataset, HashedDataInstance scratch) {
+		clear();
+		while (size < capacity() && dataset.hasNext())
+			add(dataset.advance(scratch));
+		return size;
+	}
+}
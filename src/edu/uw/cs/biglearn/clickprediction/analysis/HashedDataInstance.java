@@ -1,10 +1,8 @@
 package edu.uw.cs.biglearn.clickprediction.analysis;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import edu.uw.cs.biglearn.clickprediction.util.HashUtil;
-import edu.uw.cs.biglearn.clickprediction.util.StringUtil;
 
 public class HashedDataInstance {
 	// Label
@@ -20,59 +18,145 @@ public class HashedDataInstance {
 	int age;		// user age indicator '1' for (0, 12], '2' for (12, 18], '3' for
 							// (18, 24], '4' for (24, 30],
 							// 	'5' for (30, 40], and '6' for greater than 40.
-	
+
 	int featuredim;
-	Map<Integer, Integer> hashedTextFeature; // map hashed feature key to its value;
+	boolean personal;
+
+	// hashed features: hashedValue[i] is the value of the feature hashedIndex[i],
+	// for i < numHashed. Each index appears at most once.
+	int[] hashedIndex;
+	int[] hashedValue;
+	int numHashed;
+
+	// scratch table merging features hashed to the same index, slot s is in
+	// use for the current row iff probeGen[s] == generation.
+	private int[] probeEntry;
+	private int[] probeGen;
+	private int probeMask;
+	private int generation;
 
 	public HashedDataInstance(String line, boolean hasLabel, int dim,
 			boolean personal) {
-		String[] fields = line.split("\\|");
-		int offset = 0;
-		if (hasLabel) {
-			clicked = Integer.valueOf(fields[0]);
-			offset = 1;
-		} else {
-			clicked = -1;
-		}
-		depth = Integer.valueOf(fields[offset + 0]);
-		position = Integer.valueOf(fields[offset + 1]);
-		userid = Integer.valueOf(fields[offset + 2]);
-		gender = Integer.valueOf(fields[offset + 3]);
-		if (gender != 0) gender = (int)((gender - 1.5) * 2.0); // map gender from {1,2} to {-1, 1}
-		age = Integer.valueOf(fields[offset + 4]);
-		
-		String[] tokens = fields[offset+5].split(",");
-
-		/**
-		 * Fill in your code here to create a hashedFeature.
-		 */
+		this(new DataInstance(line, hasLabel), dim, personal);
+	}
+
+	/**
+	 * Create a HashedDataInstance from an already parsed instance, e.g. one
+	 * read from a binary dataset.
+	 *
+	 * @param instance
+	 * @param dim
+	 * @param personal
+	 */
+	public HashedDataInstance(DataInstance instance, int dim, boolean personal) {
+		this(dim, personal);
+		hash(instance);
+	}
+
+	/**
+	 * Create an empty HashedDataInstance, to be filled by
+	 * {@link DataSet#advance(HashedDataInstance)}.
+	 *
+	 * @param dim
+	 * @param personal
+	 */
+	public HashedDataInstance(int dim, boolean personal) {
 		this.featuredim = dim;
-		hashedTextFeature = new HashMap<Integer, Integer>();
-		for (String token : tokens)
-			updateFeature(token, 1);
+		this.personal = personal;
+		hashedIndex = new int[32];
+		hashedValue = new int[32];
+		probeEntry = new int[64];
+		probeGen = new int[64];
+		probeMask = 63;
+	}
+
+	/**
+	 * Fill this instance from the given parsed instance, hashing its tokens
+	 * into the reusable index/value arrays.
+	 *
+	 * @param instance
+	 */
+	void hash(DataInstance instance) {
+		clicked = instance.clicked;
+		depth = instance.depth;
+		position = instance.position;
+		userid = instance.userid;
+		gender = instance.gender;
+		age = instance.age;
+
+		int[] tokens = instance.tokens;
+		int n = instance.numTokens;
+		ensureCapacity(personal ? 2 * n + 1 : n);
+		numHashed = 0;
+		if (++generation == 0) {
+			Arrays.fill(probeGen, 0);
+			generation = 1;
+		}
+		for (int i = 0; i < n; i++)
+			updateFeature(HashUtil.hashFeature(tokens[i]), 1);
 
 		if (personal) {
-			/**
-			 * Extra credit Fill in your code here to for create a hashedFeature
-			 * with personalization.
-			 */
-			updateFeature(userid + "intercept", 1);
-			for (String token : tokens)
-				updateFeature(userid + token, 1);
+			updateFeature(HashUtil.hashFeature(userid, HashUtil.INTERCEPT), 1);
+			for (int i = 0; i < n; i++)
+				updateFeature(HashUtil.hashFeature(userid, tokens[i]), 1);
 		}
 	}
 
 	/**
-	 * Updates the feature array with a given key and value. 
-	 * @param key
+	 * Fill this instance with a copy of the other one, which must have the
+	 * same dimension and personalization.
+	 *
+	 * @param other
+	 */
+	void copyFrom(HashedDataInstance other) {
+		clicked = other.clicked;
+		depth = other.depth;
+		position = other.position;
+		userid = other.userid;
+		gender = other.gender;
+		age = other.age;
+		ensureCapacity(other.numHashed);
+		System.arraycopy(other.hashedIndex, 0, hashedIndex, 0, other.numHashed);
+		System.arraycopy(other.hashedValue, 0, hashedValue, 0, other.numHashed);
+		numHashed = other.numHashed;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > hashedIndex.length) {
+			int capacity = Math.max(n, hashedIndex.length * 2);
+			hashedIndex = Arrays.copyOf(hashedIndex, capacity);
+			hashedValue = Arrays.copyOf(hashedValue, capacity);
+		}
+		if (2 * n > probeGen.length) {
+			int capacity = Integer.highestOneBit(2 * n - 1) << 1;
+			probeEntry = new int[capacity];
+			probeGen = new int[capacity];
+			probeMask = capacity - 1;
+			generation = 0;
+		}
+	}
+
+	/**
+	 * Updates the feature arrays with a given hashed key and value.
+	 * @param hash
 	 * @param val
 	 */
-	private void updateFeature(String key, int val) {
-		int hashedkey = HashUtil.hashToRange(key, featuredim);
-		int hashedval = HashUtil.hashToSign(key) * val;
-		Integer oldvalue = hashedTextFeature.get(hashedkey);
-		if (oldvalue == null)
-			oldvalue = 0;
-		hashedTextFeature.put(hashedkey, oldvalue + hashedval);		
+	private void updateFeature(long hash, int val) {
+		int hashedkey = HashUtil.hashToRange(hash, featuredim);
+		int hashedval = HashUtil.hashToSign(hash) * val;
+		int slot = hashedkey & probeMask;
+		while (probeGen[slot] == generation) {
+			int entry = probeEntry[slot];
+			if (hashedIndex[entry] == hashedkey) {
+				hashedValue[entry] += hashedval;
+				return;
+			}
+			slot = (slot + 1) & probeMask;
+		}
+		probeGen[slot] = generation;
+		probeEntry[slot] = numHashed;
+		hashedIndex[numHashed] = hashedkey;
+		hashedValue[numHashed] = hashedval;
+		numHashed++;
 	}
 }
@@ -0,0 +1,385 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.uw.cs.biglearn.clickprediction.util.ConcurrentWeightTable;
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+import edu.uw.cs.biglearn.clickprediction.util.StreamingEvaluator;
+import edu.uw.cs.biglearn.clickprediction.util.WeightTable;
+
+/**
+ * Multi-threaded SGD for both logistic regression models, following Hogwild:
+ * each thread trains on its own shard of the data and updates the shared
+ * sparse weights without any locking. Updates of the sparse weights rarely
+ * collide, and a lost update only slows down convergence a little. The
+ * dense weights (intercept, age, gender, depth, position) are updated by
+ * every row, so writing them directly would make all the threads write the
+ * same cache line: each thread updates a private copy, and every SYNC_ROWS
+ * rows adds its change to the shared dense weights and reloads them.
+ *
+ * Delayed regularization needs a global clock; every thread uses its local
+ * row count times the number of threads plus its id, which is close to the
+ * global row count as long as the shards are processed at similar speed. A
+ * thread behind the others does not move the timestamp of a weight back, or
+ * the next thread would regularize the weight again for the same rows.
+ *
+ * @author haijieg
+ *
+ */
+public class HogwildTrainer {
+	// indices of the dense weights in the scalar arrays.
+	private static final int W0 = 0, AGE = 1, GENDER = 2, DEPTH = 3,
+			POSITION = 4;
+	static final int SYNC_ROWS = 64; // rows between two dense weight syncs
+
+	private final int nthreads;
+	/** 0/1 loss and number of rows of the last train call. */
+	public long loss, count;
+
+	public HogwildTrainer(int nthreads) {
+		this.nthreads = nthreads;
+	}
+
+	/**
+	 * Train the hashed logistic regression model on the shards in parallel.
+	 *
+	 * @param shards
+	 *            one dataset per thread, e.g. from MappedDataSet.split().
+	 * @param dim
+	 * @param lambda
+	 * @param step
+	 * @param personalized
+	 * @return the weights for the model.
+	 */
+	public LogisticRegressionWithHashing.Weights trainHashed(
+			final DataSet[] shards, final int dim, final double lambda,
+			final double step, final boolean personalized) {
+		final LogisticRegressionWithHashing lr = new LogisticRegressionWithHashing();
+		final LogisticRegressionWithHashing.Weights weights = lr.new Weights(
+				dim);
+		final double[] dense = new double[5];
+		final double logDecay = Math.log1p(-step * lambda);
+		List<Callable<long[]>> workers = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < shards.length; i++) {
+			final int id = i;
+			workers.add(new Callable<long[]>() {
+				public long[] call() {
+					return trainHashedShard(lr, shards[id], id, shards.length,
+							lr.new Weights(weights), dense, dim, lambda, step,
+							logDecay, personalized);
+				}
+			});
+		}
+		run(workers);
+		weights.w0 = dense[W0];
+		weights.wAge = dense[AGE];
+		weights.wGender = dense[GENDER];
+		weights.wDepth = dense[DEPTH];
+		weights.wPosition = dense[POSITION];
+
+		// Final sweep for delayed regularization
+		int now = (int) count - 1;
+		double[] w = weights.wHashedFeature;
+		for (int i = 0; i < w.length; i++) {
+			int t = weights.accessTime[i];
+			if (t >= 0 && t < now && logDecay != 0.0)
+				w[i] *= Math.exp((now - t - 1) * logDecay);
+			weights.accessTime[i] = now;
+		}
+		return weights;
+	}
+
+	/*
+	 * The SGD loop of LogisticRegressionWithHashing.train() on one shard. The
+	 * weights share the hashed weights with the other threads, their dense
+	 * weights are the private copy of this thread.
+	 */
+	private static long[] trainHashedShard(LogisticRegressionWithHashing lr,
+			DataSet dataset, int id, int nshards,
+			LogisticRegressionWithHashing.Weights weights, double[] dense,
+			int dim, double lambda, double step, double logDecay,
+			boolean personalized) {
+		HashedDataInstance instance = new HashedDataInstance(dim, personalized);
+		double[] local = new double[5];
+		double[] base = new double[5];
+		sync(dense, local, base);
+		setDense(local, weights);
+		long count = 0, loss = 0;
+		while (dataset.hasNext()) {
+			dataset.advance(instance);
+			int now = (int) (count * nshards + id);
+			lr.performDelayedRegularization(instance.hashedIndex,
+					instance.numHashed, weights, now, logDecay);
+			double wx = lr.computeWeightFeatureProduct(weights, instance);
+			double ctr = lr.gradientStep(weights, instance, wx, step, lambda);
+			count++;
+			if (count % SYNC_ROWS == 0 || !dataset.hasNext()) {
+				getDense(weights, local);
+				sync(dense, local, base);
+				setDense(local, weights);
+			}
+			int click_hat = ctr > 0.5 ? 1 : 0;
+			if (click_hat != instance.clicked)
+				loss += 1;
+		}
+		dataset.reset();
+		return new long[] { count, loss };
+	}
+
+	/**
+	 * Train the token logistic regression model on the shards in parallel.
+	 *
+	 * @param shards
+	 *            one dataset per thread, e.g. from MappedDataSet.split().
+	 * @param lambda
+	 * @param step
+	 * @param maxTokens
+	 *            upper bound of the number of distinct tokens in the data.
+	 * @return the weights for the model.
+	 */
+	public LogisticRegression.Weights train(final DataSet[] shards,
+			final double lambda, final double step, int maxTokens) {
+		final ConcurrentWeightTable table = new ConcurrentWeightTable(maxTokens);
+		final double[] dense = new double[5];
+		List<Callable<long[]>> workers = new ArrayList<Callable<long[]>>();
+		for (int i = 0; i < shards.length; i++) {
+			final int id = i;
+			workers.add(new Callable<long[]>() {
+				public long[] call() {
+					return trainShard(shards[id], id, shards.length, table,
+							dense, lambda, step);
+				}
+			});
+		}
+		run(workers);
+
+		LogisticRegression.Weights weights = new LogisticRegression().new Weights();
+		weights.wTokens = table.toWeightTable();
+		weights.w0 = dense[W0];
+		weights.wAge = dense[AGE];
+		weights.wGender = dense[GENDER];
+		weights.wDepth = dense[DEPTH];
+		weights.wPosition = dense[POSITION];
+
+		// Final sweep for delayed regularization
+		int now = (int) count - 1;
+		WeightTable wTokens = weights.wTokens;
+		for (int slot = 0; slot < wTokens.capacity(); slot++) {
+			if (!wTokens.used(slot))
+				continue;
+			int t = wTokens.stamp(slot);
+			if (t != WeightTable.NEVER && t < now)
+				wTokens.setWeight(slot, wTokens.weight(slot)
+						* Math.pow((1 - step * lambda), now - t - 1));
+			wTokens.setStamp(slot, now);
+		}
+		return weights;
+	}
+
+	/*
+	 * The SGD loop of LogisticRegression.train() on one shard, over the shared
+	 * concurrent table.
+	 */
+	private static long[] trainShard(DataSet dataset, int id, int nshards,
+			ConcurrentWeightTable table, double[] dense, double lambda,
+			double step) {
+		DataInstance instance = new DataInstance();
+		double[] local = new double[5];
+		double[] base = new double[5];
+		sync(dense, local, base);
+		long count = 0, loss = 0;
+		while (dataset.hasNext()) {
+			dataset.advance(instance);
+			int now = (int) (count * nshards + id);
+
+			// delayed regularization
+			if (lambda > 1e-8) {
+				for (int j = 0; j < instance.numTokens; j++) {
+					int slot = table.insert(instance.tokens[j]);
+					int t = table.stamp(slot);
+					if (t != WeightTable.NEVER && t >= now)
+						continue; // a timestamp never goes back.
+					if (t != WeightTable.NEVER)
+						table.setWeight(slot, table.weight(slot)
+								* Math.pow((1 - step * lambda), now - t - 1));
+					table.setStamp(slot, now);
+				}
+			}
+
+			// compute w0 + <w, x>
+			double wx = local[W0] + local[AGE] * instance.age + local[GENDER]
+					* instance.gender + local[DEPTH] * instance.depth
+					+ local[POSITION] * instance.position;
+			for (int j = 0; j < instance.numTokens; j++)
+				wx += table.get(instance.tokens[j]);
+			double exp = Math.exp(wx);
+			exp = Double.isInfinite(exp) ? (Double.MAX_VALUE - 1) : exp;
+
+			// compute the gradient and update the weights
+			double grad = (instance.clicked == 1) ? (-1 / (1 + exp)) : (exp / (1 + exp));
+			updateDense(local, grad, step, lambda, instance.age,
+					instance.gender, instance.depth, instance.position);
+			for (int j = 0; j < instance.numTokens; j++) {
+				int slot = table.insert(instance.tokens[j]);
+				double w = table.weight(slot);
+				table.setWeight(slot, w - step * (grad + lambda * w));
+			}
+
+			count++;
+			if (count % SYNC_ROWS == 0 || !dataset.hasNext())
+				sync(dense, local, base);
+			int click_hat = (exp / (1 + exp)) > 0.5 ? 1 : 0;
+			if (click_hat != instance.clicked)
+				loss += 1;
+		}
+		dataset.reset();
+		return new long[] { count, loss };
+	}
+
+	private static void updateDense(double[] dense, double grad, double step,
+			double lambda, int age, int gender, int depth, int position) {
+		dense[W0] += -step * grad;
+		dense[AGE] += -step * (grad * age + lambda * dense[AGE]);
+		dense[GENDER] += -step * (grad * gender + lambda * dense[GENDER]);
+		dense[DEPTH] += -step * (grad * depth + lambda * dense[DEPTH]);
+		dense[POSITION] += -step * (grad * position + lambda * dense[POSITION]);
+	}
+
+	/**
+	 * Adds the change of the private dense weights of a thread since its last
+	 * sync to the shared ones, then reloads the shared ones, which include
+	 * the changes of the other threads, into the private and base copies.
+	 */
+	private static void sync(double[] shared, double[] local, double[] base) {
+		synchronized (shared) {
+			for (int j = 0; j < shared.length; j++) {
+				shared[j] += local[j] - base[j];
+				local[j] = base[j] = shared[j];
+			}
+		}
+	}
+
+	private static void getDense(LogisticRegressionWithHashing.Weights weights,
+			double[] dense) {
+		dense[W0] = weights.w0;
+		dense[AGE] = weights.wAge;
+		dense[GENDER] = weights.wGender;
+		dense[DEPTH] = weights.wDepth;
+		dense[POSITION] = weights.wPosition;
+	}
+
+	private static void setDense(double[] dense,
+			LogisticRegressionWithHashing.Weights weights) {
+		weights.w0 = dense[W0];
+		weights.wAge = dense[AGE];
+		weights.wGender = dense[GENDER];
+		weights.wDepth = dense[DEPTH];
+		weights.wPosition = dense[POSITION];
+	}
+
+	/**
+	 * Runs the workers, one per thread, and sums up their row count and loss.
+	 * 
+	 * @return the row count and loss of each worker.
+	 */
+	private long[][] run(List<Callable<long[]>> workers) {
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try {
+			long[][] stats = new long[workers.size()][];
+			count = loss = 0;
+			int i = 0;
+			for (Future<long[]> result : pool.invokeAll(workers)) {
+				stats[i] = result.get();
+				count += stats[i][0];
+				loss += stats[i][1];
+				i++;
+			}
+			return stats;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return the RMSE of the predictions on the testing data, evaluated as
+	 *         they are made.
+	 */
+	private static double rmse(LogisticRegressionWithHashing lr,
+			LogisticRegressionWithHashing.Weights weights, DataSet testing,
+			String solpath) throws IOException {
+		StreamingEvaluator eval = new StreamingEvaluator(solpath);
+		try {
+			lr.predict(weights, testing, false, eval, null);
+		} finally {
+			eval.close();
+		}
+		return eval.all().rmse();
+	}
+
+	/**
+	 * Measures the scaling of the hashed trainer (rows/sec vs threads) and
+	 * compares its loss and rmse with the serial trainer.
+	 * Usage: HogwildTrainer [train.txt test.txt test_label.txt maxthreads]
+	 */
+	public static void main(String args[]) throws IOException {
+		String trainpath = args.length > 0 ? args[0] : "data/train.txt";
+		String testpath = args.length > 1 ? args[1] : "data/test.txt";
+		String solpath = args.length > 2 ? args[2] : "data/test_label.txt";
+		int maxthreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime
+				.getRuntime().availableProcessors();
+		int dim = 12289;
+		double step = 0.01;
+		double lambda = 0.001;
+
+		MappedFile trainfile = new MappedFile(trainpath);
+		MappedDataSet training = new MappedDataSet(trainfile, true,
+				Integer.MAX_VALUE);
+		DataSet testing = new MappedDataSet(testpath, false, Integer.MAX_VALUE);
+		LogisticRegressionWithHashing lr = new LogisticRegressionWithHashing();
+
+		int rows = 0;
+		DataInstance instance = new DataInstance();
+		while (training.hasNext()) {
+			training.advance(instance);
+			rows++;
+		}
+		training.reset();
+
+		ArrayList<Double> avgLoss = new ArrayList<Double>();
+		long start = System.nanoTime();
+		LogisticRegressionWithHashing.Weights weights = lr.train(training, dim,
+				lambda, step, avgLoss, false);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double rmse = rmse(lr, weights, testing, solpath);
+		System.out.println("threads\trows/sec\tavgloss\trmse");
+		// the loss is recorded every 100 rows.
+		double serialLoss = avgLoss.isEmpty() ? Double.NaN : avgLoss
+				.get(avgLoss.size() - 1);
+		System.out.println("serial\t" + (long) (rows / seconds)
+				+ "\t" + serialLoss + "\t" + rmse);
+
+		for (int threads = 1; threads <= maxthreads; threads *= 2) {
+			HogwildTrainer trainer = new HogwildTrainer(threads);
+			DataSet[] shards = training.split(threads);
+			start = System.nanoTime();
+			weights = trainer.trainHashed(shards, dim, lambda, step, false);
+			seconds = (System.nanoTime() - start) / 1e9;
+			rmse = rmse(lr, weights, testing, solpath);
+			System.out.println(threads + "\t"
+					+ (long) (trainer.count / seconds) + "\t"
+					+ (double) trainer.loss / trainer.count + "\t" + rmse);
+		}
+	}
+}
@@ -3,12 +3,20 @@ package edu.uw.cs.biglearn.clickprediction.analysis;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Random;
 
+import edu.uw.cs.biglearn.clickprediction.serving.FrozenModel;
+import edu.uw.cs.biglearn.clickprediction.serving.FrozenTokenModel;
+import edu.uw.cs.biglearn.clickprediction.serving.ModelRegistry;
 import edu.uw.cs.biglearn.clickprediction.util.EvalUtil;
+import edu.uw.cs.biglearn.clickprediction.util.StreamingEvaluator;
+import edu.uw.cs.biglearn.clickprediction.util.TrainingMetrics;
+import edu.uw.cs.biglearn.clickprediction.util.WeightTable;
 
 public class LogisticRegression {
 	/**
@@ -20,22 +28,20 @@ public class LogisticRegression {
 	public class Weights {
 		double w0;
 		/*
-		 * query.get("123") will return the weight for the feature:
-		 * "token 123 in the query field".
+		 * wTokens.get(123) will return the weight for the feature:
+		 * "token 123 in the query field". The table also keeps track of the
+		 * access timestamp of each token weight, used to do delayed
+		 * regularization.
 		 */
-		Map<Integer, Double> wTokens;
+		WeightTable wTokens;
 		double wPosition;
 		double wDepth;
 		double wAge;
 		double wGender;
 		
-		Map<Integer, Integer> accessTime; // keep track of the access timestamp of feature weights.
-																			// Using this to do delayed regularization.
-		
 		public Weights() {
 			w0 = wAge = wGender = wDepth = wPosition = 0.0;
-			wTokens = new HashMap<Integer, Double>();
-			accessTime = new HashMap<Integer, Integer>();
+			wTokens = new WeightTable();
 		}
 
 		@Override
@@ -57,8 +63,12 @@ public class LogisticRegression {
 		public double l2norm() {
 			double l2 = w0 * w0 + wAge * wAge + wGender * wGender
 					 				+ wDepth*wDepth + wPosition*wPosition;
-			for (double w : wTokens.values())
-				l2 += w * w;
+			for (int slot = 0; slot < wTokens.capacity(); slot++) {
+				if (wTokens.used(slot)) {
+					double w = wTokens.weight(slot);
+					l2 += w * w;
+				}
+			}
 			return Math.sqrt(l2);
 		}
 
@@ -68,9 +78,88 @@ public class LogisticRegression {
 		public int l0norm() {
 			return 4 + wTokens.size();
 		}
+
+		/**
+		 * @return an immutable copy of the weights for serving.
+		 */
+		public FrozenTokenModel freeze() {
+			return snapshot(0, 0.0, 0.0);
+		}
+
+		/**
+		 * @return an immutable copy of the weights in the middle of training
+		 *         at timestamp now. The regularization still delayed for each
+		 *         token is applied to the copy only.
+		 */
+		FrozenTokenModel snapshot(int now, double step, double lambda) {
+			int[] keys = new int[wTokens.size()];
+			int n = 0;
+			for (int slot = 0; slot < wTokens.capacity(); slot++) {
+				if (wTokens.used(slot))
+					keys[n++] = wTokens.key(slot);
+			}
+			Arrays.sort(keys);
+			double[] values = new double[n];
+			for (int i = 0; i < n; i++) {
+				int slot = wTokens.find(keys[i]);
+				values[i] = wTokens.weight(slot);
+				int t = wTokens.stamp(slot);
+				if (lambda > 1e-8 && t != WeightTable.NEVER)
+					values[i] *= Math.pow((1 - step * lambda), now - t - 1);
+			}
+			return new FrozenTokenModel(w0, wDepth, wPosition, wAge, wGender,
+					IntBuffer.wrap(keys), DoubleBuffer.wrap(values));
+		}
+
+		/**
+		 * Saves the weights as a binary snapshot, see FrozenModel.
+		 * 
+		 * @param path
+		 * @throws IOException
+		 */
+		public void save(String path) throws IOException {
+			freeze().save(path);
+		}
+	}
+
+	private TrainingMetrics metrics;
+
+	/**
+	 * Records the throughput and the time of each stage of the following
+	 * calls to train() in the metrics. The metrics are per run, so a trainer
+	 * with metrics must not run two trainings at once.
+	 * 
+	 * @param metrics	or null to stop recording.
+	 */
+	public void setMetrics(TrainingMetrics metrics) {
+		this.metrics = metrics;
 	}
-	
 
+	/**
+	 * Reads weights saved by Weights.save(). The access timestamps are not
+	 * saved, the loaded weights are all considered never accessed.
+	 * 
+	 * @param path
+	 * @return the weights.
+	 * @throws IOException
+	 */
+	public Weights loadWeights(String path) throws IOException {
+		FrozenModel model = FrozenModel.load(path);
+		if (!(model instanceof FrozenTokenModel))
+			throw new IOException("Not a token model snapshot: " + path);
+		FrozenTokenModel tokens = (FrozenTokenModel) model;
+		Weights weights = new Weights();
+		weights.w0 = tokens.w0();
+		weights.wDepth = tokens.wDepth();
+		weights.wPosition = tokens.wPosition();
+		weights.wAge = tokens.wAge();
+		weights.wGender = tokens.wGender();
+		weights.wTokens = new WeightTable(tokens.size());
+		for (int i = 0; i < tokens.size(); i++)
+			weights.wTokens.setWeight(weights.wTokens.insert(tokens.key(i)),
+					tokens.value(i));
+		return weights;
+	}
 
 	/**
 	 * Helper function to compute inner product w^Tx.
@@ -79,15 +168,13 @@ public class LogisticRegression {
 	 * @param instance
 	 * @return
 	 */
-	private double computeWeightFeatureProduct(Weights weights,
+	double computeWeightFeatureProduct(Weights weights,
 			DataInstance instance) {
 		double wx = weights.w0 + weights.wAge * instance.age + weights.wGender
 				* instance.gender + weights.wDepth * instance.depth
 				+ weights.wPosition * instance.position;
-		for (int token : instance.tokens) {
-			Double w_token = weights.wTokens.get(token);
-			if (w_token != null)
-				wx += w_token;
+		for (int i = 0; i < instance.numTokens; i++) {
+			wx += weights.wTokens.get(instance.tokens[i]);
 		}
 		return wx;
 	}
@@ -99,14 +186,27 @@ public class LogisticRegression {
 	 * @param step
 	 * @param lambda
 	 * @param timestamp
+	 * @return the predicted CTR of the instance before the update.
 	 */
-	private void updateWeights(Weights weights, DataInstance instance,
+	double updateWeights(Weights weights, DataInstance instance,
 			double step, double lambda, int timestamp) {
-
-		
-		
 		// compute w0 + <w, x>
 		double wx = computeWeightFeatureProduct(weights, instance);
+		return gradientStep(weights, instance, wx, step, lambda);
+	}
+
+	/**
+	 * Helper function: the SGD step of train(), given the product of the
+	 * weights and the instance.
+	 * @param weights
+	 * @param instance
+	 * @param wx	w0 + <w, x>.
+	 * @param step
+	 * @param lambda
+	 * @return the predicted CTR of the instance before the update.
+	 */
+	double gradientStep(Weights weights, DataInstance instance, double wx,
+			double step, double lambda) {
 		double exp = Math.exp(wx);
 		exp = Double.isInfinite(exp) ? (Double.MAX_VALUE - 1) : exp;
 		// compute the gradient
@@ -122,35 +222,35 @@ public class LogisticRegression {
 		weights.wPosition += -step
 				* (grad * instance.position + lambda * weights.wPosition);
 		
-		for (int token : instance.tokens) {
-			Double w = weights.wTokens.get(token);
-			if (w == null)
-				w = 0.0;
-			w += -step * (grad + lambda * w);
-			weights.wTokens.put(token, w);
+		for (int i = 0; i < instance.numTokens; i++) {
+			int slot = weights.wTokens.insert(instance.tokens[i]);
+			double w = weights.wTokens.weight(slot);
+			weights.wTokens.setWeight(slot, w - step * (grad + lambda * w));
 		}
+		return exp / (1 + exp);
 	}
 
 	
 	/**
 	 * Apply delayed regularization to the weights corresponding to the given tokens.
 	 * @param tokens
+	 * @param numTokens	the number of valid entries in tokens.
 	 * @param weights
-	 * @param accessTime	a lookup table for querying the last access timestamp of a given weight.
 	 * @param now 	the current timestamp.
 	 * @param step
 	 * @param lambda
 	 */
-	private void performDelayedRegularization(int[] tokens,
+	void performDelayedRegularization(int[] tokens, int numTokens,
 			Weights weights,
 			int now, double step, double lambda) {
-		for (int token : tokens) {
-			Integer t = weights.accessTime.get(token);
-			if (t != null) {
-				double w = weights.wTokens.get(token);
-				weights.wTokens.put(token, w * Math.pow((1 - step * lambda), now-t-1));
+		for (int i = 0; i < numTokens; i++) {
+			int slot = weights.wTokens.insert(tokens[i]);
+			int t = weights.wTokens.stamp(slot);
+			if (t != WeightTable.NEVER) {
+				double w = weights.wTokens.weight(slot);
+				weights.wTokens.setWeight(slot, w * Math.pow((1 - step * lambda), now-t-1));
 			}
-			weights.accessTime.put(token, now);
+			weights.wTokens.setStamp(slot, now);
 		}
 	}
 	
@@ -165,47 +265,91 @@ public class LogisticRegression {
 	 * @return the weights for the model.
 	 */
 	public Weights train(DataSet dataset, double lambda, double step, ArrayList<Double> AvgLoss) {
+		return train(dataset, lambda, step, AvgLoss, 1, null);
+	}
+
+	/**
+	 * Train the logistic regression model with several passes over the
+	 * training data. The first pass reads the dataset and caches the parsed
+	 * instances in a CachedDataSet, the later passes only read memory.
+	 * 
+	 * @param dataset
+	 * @param lambda
+	 * @param step
+	 * @param AvgLoss
+	 * @param epochs	the number of passes over the data.
+	 * @param shuffle	if not null, each pass after the first one visits the
+	 * 					instances in a random order drawn from this generator.
+	 * @return the weights for the model.
+	 * @throws IllegalStateException	if epochs > 1 and the dataset is too
+	 * 					large for a CachedDataSet.
+	 */
+	public Weights train(DataSet dataset, double lambda, double step,
+			ArrayList<Double> AvgLoss, int epochs, Random shuffle) {
+		return train(dataset, lambda, step, AvgLoss, epochs, shuffle, null, 0);
+	}
+
+	/**
+	 * Same as train(dataset, lambda, step, AvgLoss, epochs, shuffle), also
+	 * publishing a snapshot of the weights to the registry every publishEvery
+	 * instances and at the end, so that the model can be served while it is
+	 * trained.
+	 * 
+	 * @param registry	where to publish, or null.
+	 * @param publishEvery	the number of instances between two snapshots,
+	 * 				positive if registry is not null.
+	 * @return the weights for the model.
+	 */
+	public Weights train(DataSet dataset, double lambda, double step,
+			ArrayList<Double> AvgLoss, int epochs, Random shuffle,
+			ModelRegistry registry, int publishEvery) {
+		if (registry != null && publishEvery <= 0)
+			throw new IllegalArgumentException("publishEvery=" + publishEvery);
 		Weights weights = new Weights();
 		int count = 0;
 		int loss = 0;
-		System.err.println("Loading data from " + dataset.path + " ... ");
-		for (int i = 0; i < 1; i++) {
-  		while (dataset.hasNext()) {
-  			DataInstance instance = dataset.nextInstance();
+		DataInstance instance = new DataInstance();
+		CachedDataSet cache = (epochs > 1) ? new CachedDataSet(dataset.path,
+				dataset.hasLabel) : null;
+		DataSet input = dataset;
+		if (metrics != null)
+			metrics.start();
+		for (int epoch = 0; epoch < epochs; epoch++) {
+			if (epoch > 0) {
+				input = cache;
+				if (shuffle != null)
+					cache.shuffle(shuffle);
+			}
+			System.err.println("Loading data from " + input.path + " ... ");
+			int processed = 0;
+  		while (input.hasNext()) {
+  			// time one row in TrainingMetrics.SAMPLE stage by stage
+  			boolean timed = metrics != null && metrics.beginRow();
+  			long t = timed ? System.nanoTime() : 0;
+  			input.advance(instance);
+  			if (epoch == 0 && cache != null)
+  				cache.add(instance);
+  			if (timed)
+  				t = metrics.lap(TrainingMetrics.READ, t);
   			
     		// Perform delayed regularization
   			if (lambda > 1e-8) {
-  	  		performDelayedRegularization(instance.tokens, weights,
+  	  		performDelayedRegularization(instance.tokens, instance.numTokens, weights,
   	  				count, step, lambda);
   			}
+  			if (timed)
+  				t = metrics.lap(TrainingMetrics.REGULARIZE, t);
   			
   			// compute w0 + <w, x>
   			double wx = computeWeightFeatureProduct(weights, instance);
-  			double exp = Math.exp(wx);
-  			exp = Double.isInfinite(exp) ? (Double.MAX_VALUE - 1) : exp;
-  			
-  		
-  			// compute the gradient
-  			double grad = (instance.clicked == 1) ? (-1 / (1 + exp)) : (exp / (1 + exp));
-  			
-  			// update weights along the negative gradient
-  			weights.w0 += -step * grad;
-  			weights.wAge += -step * (grad * instance.age + lambda * weights.wAge);
-  			weights.wGender += -step
-  					* (grad * instance.gender + lambda * weights.wGender);
-  			weights.wDepth += -step
-  					* (grad * instance.depth + lambda * weights.wDepth);
-  			weights.wPosition += -step
-  					* (grad * instance.position + lambda * weights.wPosition);  			
-  			for (int token : instance.tokens) {
-  				Double w = weights.wTokens.get(token);
-  				if (w == null)
-  					w = 0.0;
-  				w += -step * (grad + lambda * w);
-  				weights.wTokens.put(token, w);
-  			}
+  			if (timed)
+  				t = metrics.lap(TrainingMetrics.PRODUCT, t);
+  			double ctr = gradientStep(weights, instance, wx, step, lambda);
 
   			count++;
+  			processed++;
+  			if (registry != null && count % publishEvery == 0)
+  				registry.publish(weights.snapshot(count - 1, step, lambda));
   		
   			if (count % 100000 == 0) {
   				System.err.println("Processed " + count + " lines");
@@ -215,32 +359,43 @@ public class LogisticRegression {
   			}
   			
   			// predict the label, record the loss
-  		  int click_hat = (exp / (1+exp)) > 0.5 ? 1 : 0;
+  		  int click_hat = ctr > 0.5 ? 1 : 0;
   		  if (click_hat != instance.clicked)
   		  	loss += 1;
   		  if (count % 100 == 0) {
   		  	AvgLoss.add((double)loss/count);
   		  }
+  		  if (timed) {
+  		  	metrics.lap(TrainingMetrics.UPDATE, t);
+  		  	metrics.endRow(weights.wTokens.size(),
+  		  			16L * weights.wTokens.capacity());
+  		  }
   		}
-  		if (count < dataset.size) {
+  		if (processed < dataset.size) {
   			System.err
   					.println("Warning: the real size of the data is less than the input size: "
-  							+ dataset.size + "<" + count);
+  							+ dataset.size + "<" + processed);
   		}
   		System.err.println("Done. Total processed instances: " + count);
-  		dataset.reset();
+  		input.reset();
 		}
 		
 		// Final sweep for delayed regularization
 		int[] alltokens = new int[weights.wTokens.size()];
 		int i = 0;
-		for (Integer token : weights.wTokens.keySet()) {
-			alltokens[i] = token;
-			++i;
+		for (int slot = 0; slot < weights.wTokens.capacity(); slot++) {
+			if (weights.wTokens.used(slot)) {
+				alltokens[i] = weights.wTokens.key(slot);
+				++i;
+			}
 		}
-		performDelayedRegularization(alltokens,
+		performDelayedRegularization(alltokens, alltokens.length,
 				weights,
 				count-1, step, lambda);
+		if (registry != null)
+			registry.publish(weights.freeze());
+		if (metrics != null)
+			metrics.finish();
 		return weights;
 	}
 
@@ -255,8 +410,9 @@ public class LogisticRegression {
 		ArrayList<Double> ctr = new ArrayList<Double>();
 		System.err.println("Loading data from " + dataset.path + " ... ");
 		int count = 0;
+		DataInstance instance = new DataInstance();
 		while (dataset.hasNext()) {
-			DataInstance instance = dataset.nextInstance();
+			dataset.advance(instance);
 			double wx = computeWeightFeatureProduct(weights, instance);
 			double exp = Math.exp(wx);
 			ctr.add(exp / (1 + exp));
@@ -275,55 +431,84 @@ public class LogisticRegression {
 		return ctr;
 	}
 
+	/**
+	 * Using the weights to predict CTR in for the test dataset, passing each
+	 * prediction to the evaluator as it is made instead of collecting them.
+	 * 
+	 * @param weights
+	 * @param dataset
+	 * @param eval
+	 * @throws IOException
+	 */
+	public void predict(Weights weights, DataSet dataset,
+			StreamingEvaluator eval) throws IOException {
+		System.err.println("Loading data from " + dataset.path + " ... ");
+		int count = 0;
+		DataInstance instance = new DataInstance();
+		while (dataset.hasNext()) {
+			dataset.advance(instance);
+			double wx = computeWeightFeatureProduct(weights, instance);
+			double exp = Math.exp(wx);
+			eval.add(exp / (1 + exp));
+			count++;
+			if (count % 100000 == 0) {
+				System.err.println("Processed " + count + " lines");
+			}
+		}
+		if (count < dataset.size) {
+			System.err
+					.println("Warning: the real size of the data is less than the input size: "
+							+ dataset.size + "<" + count);
+		}
+		System.err.println("Done. Total processed instances: " + count);
+		dataset.reset();
+	}
+
+	/**
+	 * Save the weights (as text and as a binary snapshot), the evaluation and
+	 * the learning curve of one run to
+	 * outpathbase/{weights,model,eval,loss}_step_lambda, and the predictions
+	 * the evaluator wrote to the file predictions to
+	 * outpathbase/ctr_step_lambda, under their rmse line.
+	 */
+	static void writeResults(String outpathbase, double step, double lambda,
+			Weights weights, StreamingEvaluator eval, String predictions,
+			ArrayList<Double> AvgLoss) throws IOException {
+		DecimalFormat formatter = new DecimalFormat("###.####");
+		String suffix = "_"+formatter.format(step) + "_"+formatter.format(lambda);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outpathbase + "weights" + suffix));
+		writer.write("l2 norm: " + weights.l2norm() + "\n");
+		writer.write("l0 norm: " + weights.l0norm() + "\n");  			
+		writer.write(weights.toString());
+		writer.close();
+		weights.save(outpathbase + "model" + suffix);
+		
+		EvalUtil.writePredictions(outpathbase + "ctr" + suffix,
+				eval.all().rmse(), predictions);
+		
+		writer = new BufferedWriter(new FileWriter(outpathbase + "eval" + suffix));
+		writer.write("rmse: " + eval.all().rmse() + "\n");
+		writer.write("all: " + eval.all() + "\n");
+		writer.close();
+		
+		writer = new BufferedWriter(new FileWriter(outpathbase + "loss" + suffix));
+		for (double loss : AvgLoss)
+			writer.write(loss + "\n");
+		writer.close();
+	}
+
 	public static void main(String args[]) throws IOException {
-		int training_size = DataSet.TRAININGSIZE;
-		int testing_size = DataSet.TESTINGSIZE;
-		DataSet training = new DataSet(
-				"data/train.txt",
-				true, training_size);
-		DataSet testing = new DataSet(
-				"data/test.txt",
-				false, testing_size);
 		String solpath = "data/test_label.txt";
-		LogisticRegression lr = new LogisticRegression();
 		
 		double baseline_rmse = EvalUtil.evalBaseLine(solpath, 0.03365528484381977);
 		System.out.println("Baseline rmse: " + baseline_rmse);
 
-		DecimalFormat formatter = new DecimalFormat("###.####");
-			double [] steps = {0.001, 0.01, 0.05};
-			double [] lambdas = {0};
-			//double [] steps = {0.05};
-			//double [] lambdas = {0, 0.002, 0.004,  0.006, 0.008, 0.01, 0.012, 0.014};
-		  for (double lambda: lambdas) {
-		  	for (double step : steps) {
-  			System.err.println("Running step = " + step +", lambda = " + lambda);
-  			ArrayList<Double> AvgLoss = new ArrayList<Double>();
-  			Weights weights = lr.train(training, lambda, step, AvgLoss);
-  			ArrayList<Double> ctr_prediction = lr.predict(weights, testing);
-  			double rmse = EvalUtil.eval(solpath, ctr_prediction);
-  			System.out.println("rmse: " + rmse + "\n");
-  
-  			// save the weights and the prediction
-  			String outpathbase = "experiments/lrreg/";
-  			String suffix = "_"+formatter.format(step) + "_"+formatter.format(lambda);
-  			BufferedWriter writer = new BufferedWriter(new FileWriter(outpathbase + "weights" + suffix));
-  			writer.write("l2 norm: " + weights.l2norm() + "\n");
-  			writer.write("l0 norm: " + weights.l0norm() + "\n");  			
-  			writer.write(weights.toString());
-  			writer.close();
-  			
-  			writer = new BufferedWriter(new FileWriter(outpathbase + "ctr" + suffix));
-  			writer.write("rmse: " + rmse + "\n");
-  			for (double ctr : ctr_prediction)
-  				writer.write(ctr + "\n");
-  			writer.close();
-  			
-  			writer = new BufferedWriter(new FileWriter(outpathbase + "loss" + suffix));
-  			for (double loss : AvgLoss)
-  				writer.write(loss + "\n");
-  			writer.close();
-		  	}
-		}
+		double [] steps = {0.001, 0.01, 0.05};
+		double [] lambdas = {0};
+		//double [] steps = {0.05};
+		//double [] lambdas = {0, 0.002, 0.004,  0.006, 0.008, 0.01, 0.012, 0.014};
+		SweepRunner sweep = new SweepRunner("data/train.txt",
+				DataSet.TRAININGSIZE, "data/test.txt", DataSet.TESTINGSIZE, solpath);
+		sweep.sweepLogisticRegression(steps, lambdas, "experiments/lrreg/");
 	}
-}
\ No newline at end of file
+}
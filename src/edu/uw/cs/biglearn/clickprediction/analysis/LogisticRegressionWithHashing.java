@@ -3,16 +3,23 @@ package edu.uw.cs.biglearn.clickprediction.analysis;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
 
+import edu.uw.cs.biglearn.clickprediction.serving.FrozenHashedModel;
+import edu.uw.cs.biglearn.clickprediction.serving.FrozenModel;
+import edu.uw.cs.biglearn.clickprediction.serving.ModelRegistry;
 import edu.uw.cs.biglearn.clickprediction.util.EvalUtil;
+import edu.uw.cs.biglearn.clickprediction.util.FastMath;
+import edu.uw.cs.biglearn.clickprediction.util.StreamingEvaluator;
+import edu.uw.cs.biglearn.clickprediction.util.TrainingMetrics;
 
 public class LogisticRegressionWithHashing {
+	static final int BATCH_SIZE = 4096; // rows scored per scoreBatch call
+	
 	public class Weights {
 		double w0;
 		double wPosition;
@@ -20,15 +27,26 @@ public class LogisticRegressionWithHashing {
 		double wAge;
 		double wGender;
 		double[] wHashedFeature;
-		Map<Integer, Integer> accessTime; // keep track of the access timestamp of feature weights.
-																			// Using this to do delayed regularization.
+		int[] accessTime; // keep track of the access timestamp of feature weights, -1 if never accessed.
+											// Using this to do delayed regularization.
 		int featuredim;
 		
 		public Weights(int featuredim) {
 			this.featuredim = featuredim;
 			w0 = wAge = wGender = wDepth = wPosition = 0.0;
 			wHashedFeature = new double[featuredim];
-			accessTime = new HashMap<Integer, Integer>();
+			accessTime = new int[featuredim];
+			Arrays.fill(accessTime, -1);
+		}
+
+		/**
+		 * Weights sharing the hashed weights and access timestamps of other,
+		 * with their own dense weights, all zero.
+		 */
+		Weights(Weights other) {
+			this.featuredim = other.featuredim;
+			wHashedFeature = other.wHashedFeature;
+			accessTime = other.accessTime;
 		}
 
 		@Override
@@ -57,9 +75,88 @@ public class LogisticRegressionWithHashing {
 				l2 += w * w;
 			return Math.sqrt(l2);
 		}
+
+		/**
+		 * @param personal
+		 *            True if the weights were trained with personalized
+		 *            features.
+		 * @return an immutable copy of the weights for serving.
+		 */
+		public FrozenHashedModel freeze(boolean personal) {
+			return snapshot(0, 0.0, personal);
+		}
+
+		/**
+		 * @return an immutable copy of the weights in the middle of training
+		 *         at timestamp now. The regularization still delayed for each
+		 *         feature is applied to the copy only.
+		 */
+		FrozenHashedModel snapshot(int now, double logDecay, boolean personal) {
+			double[] w = wHashedFeature.clone();
+			if (logDecay != 0.0) {
+				for (int i = 0; i < w.length; i++) {
+					int t = accessTime[i];
+					if (t >= 0)
+						w[i] *= Math.exp((now - t - 1) * logDecay);
+				}
+			}
+			return new FrozenHashedModel(w0, wDepth, wPosition, wAge, wGender,
+					DoubleBuffer.wrap(w), personal);
+		}
+
+		/**
+		 * Saves the weights as a binary snapshot, see FrozenModel.
+		 * 
+		 * @param path
+		 * @param personal
+		 *            True if the weights were trained with personalized
+		 *            features.
+		 * @throws IOException
+		 */
+		public void save(String path, boolean personal) throws IOException {
+			new FrozenHashedModel(w0, wDepth, wPosition, wAge, wGender,
+					DoubleBuffer.wrap(wHashedFeature), personal).save(path);
+		}
 	} // end of weight class
 
 	
+	private TrainingMetrics metrics;
+
+	/**
+	 * Records the throughput and the time of each stage of the following
+	 * calls to train() in the metrics. The metrics are per run, so a trainer
+	 * with metrics must not run two trainings at once.
+	 * 
+	 * @param metrics	or null to stop recording.
+	 */
+	public void setMetrics(TrainingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Reads weights saved by Weights.save(). The access timestamps are not
+	 * saved, the loaded weights are all considered never accessed.
+	 * 
+	 * @param path
+	 * @return the weights.
+	 * @throws IOException
+	 */
+	public Weights loadWeights(String path) throws IOException {
+		FrozenModel model = FrozenModel.load(path);
+		if (!(model instanceof FrozenHashedModel))
+			throw new IOException("Not a hashed model snapshot: " + path);
+		FrozenHashedModel hashed = (FrozenHashedModel) model;
+		Weights weights = new Weights(hashed.dim());
+		weights.w0 = hashed.w0();
+		weights.wDepth = hashed.wDepth();
+		weights.wPosition = hashed.wPosition();
+		weights.wAge = hashed.wAge();
+		weights.wGender = hashed.wGender();
+		for (int i = 0; i < hashed.dim(); i++)
+			weights.wHashedFeature[i] = hashed.weightAt(i);
+		return weights;
+	}
+
 	/**
 	 * Helper function to compute inner product w^Tx.
 	 * 
@@ -67,36 +164,161 @@ public class LogisticRegressionWithHashing {
 	 * @param instance
 	 * @return
 	 */
-	private double computeWeightFeatureProduct(Weights weights,
+	double computeWeightFeatureProduct(Weights weights,
 			HashedDataInstance instance) {
 		double wx = weights.w0 + weights.wAge * instance.age + weights.wGender
 				* instance.gender + weights.wDepth * instance.depth
 				+ weights.wPosition * instance.position;
-		for (Map.Entry<Integer, Integer> entry: instance.hashedTextFeature.entrySet()) {
-			wx += weights.wHashedFeature[entry.getKey()] * entry.getValue();
+		for (int i = 0; i < instance.numHashed; i++) {
+			wx += weights.wHashedFeature[instance.hashedIndex[i]] * instance.hashedValue[i];
 		}
 		return wx;
 	}
 	
 	/**
-	 * Apply delayed regularization to the weights corresponding to the given tokens.
-	 * @param tokens
+	 * Helper function: update the weights based on the current instance.
 	 * @param weights
-	 * @param accessTime	a lookup table for querying the last access timestamp of a given weight.
-	 * @param now 	the current timestamp.
+	 * @param instance
 	 * @param step
 	 * @param lambda
+	 * @return the predicted CTR of the instance before the update.
 	 */
-	private void performDelayedRegularization(Set<Integer> featureids,
+	double updateWeights(Weights weights, HashedDataInstance instance,
+			double step, double lambda) {
+		// compute w0 + <w, x>
+		double wx = computeWeightFeatureProduct(weights, instance);
+		return gradientStep(weights, instance, wx, step, lambda);
+	}
+
+	/**
+	 * Helper function: the SGD step of train(), given the product of the
+	 * weights and the instance.
+	 * @param weights
+	 * @param instance
+	 * @param wx	w0 + <w, x>.
+	 * @param step
+	 * @param lambda
+	 * @return the predicted CTR of the instance before the update.
+	 */
+	double gradientStep(Weights weights, HashedDataInstance instance,
+			double wx, double step, double lambda) {
+		double exp = Math.exp(wx);
+		exp = Double.isInfinite(exp) ? (Double.MAX_VALUE - 1) : exp;
+		// compute the gradient
+		double grad = (instance.clicked == 1) ? (-1 / (1 + exp)) : (exp / (1 + exp));
+
+		// update weights along the negative gradient
+		weights.w0 += -step * grad;
+		weights.wAge += -step * (grad * instance.age + lambda * weights.wAge);
+		weights.wGender += -step
+				* (grad * instance.gender + lambda * weights.wGender);
+		weights.wDepth += -step
+				* (grad * instance.depth + lambda * weights.wDepth);
+		weights.wPosition += -step
+				* (grad * instance.position + lambda * weights.wPosition);
+		for (int i = 0; i < instance.numHashed; i++) {
+			int key = instance.hashedIndex[i];
+			weights.wHashedFeature[key] += -step * (grad * instance.hashedValue[i] + lambda * weights.wHashedFeature[key]);
+		}
+		return exp / (1 + exp);
+	}
+
+	/**
+	 * Scores a batch of instances: out[r] is the predicted CTR of row r. The
+	 * dot products of the whole batch are computed first, then the sigmoid is
+	 * applied in a separate loop using FastMath.sigmoid.
+	 * 
+	 * @param weights
+	 * @param batch
+	 * @param out
+	 *            At least batch.size() long.
+	 */
+	public void scoreBatch(Weights weights, HashedBatch batch, double[] out) {
+		scoreBatch(weights, batch, out, true);
+	}
+
+	/**
+	 * Scores a batch of instances: out[r] is the predicted CTR of row r.
+	 * 
+	 * @param weights
+	 * @param batch
+	 * @param out
+	 *            At least batch.size() long.
+	 * @param fastSigmoid
+	 *            Whether to use the FastMath.sigmoid table, which saturates
+	 *            outside [-16, 16], instead of the exact sigmoid of predict.
+	 */
+	public void scoreBatch(Weights weights, HashedBatch batch, double[] out,
+			boolean fastSigmoid) {
+		double[] w = weights.wHashedFeature;
+		int[] offsets = batch.offsets;
+		int[] indices = batch.indices;
+		int[] values = batch.values;
+		int n = batch.size;
+		for (int r = 0; r < n; r++) {
+			double wx = weights.w0 + weights.wAge * batch.age[r]
+					+ weights.wGender * batch.gender[r] + weights.wDepth
+					* batch.depth[r] + weights.wPosition * batch.position[r];
+			for (int k = offsets[r]; k < offsets[r + 1]; k++)
+				wx += w[indices[k]] * values[k];
+			out[r] = wx;
+		}
+		if (fastSigmoid) {
+			for (int r = 0; r < n; r++)
+				out[r] = FastMath.sigmoid(out[r]);
+		} else {
+			for (int r = 0; r < n; r++) {
+				double exp = Math.exp(out[r]);
+				if (Double.isInfinite(exp))
+					exp = Double.MAX_VALUE - 1;
+				out[r] = exp / (1 + exp);
+			}
+		}
+	}
+
+	/**
+	 * Apply delayed regularization to the weights corresponding to the given tokens.
+	 * @param featureids
+	 * @param numFeatures	the number of valid entries in featureids.
+	 * @param weights
+	 * @param now 	the current timestamp.
+	 * @param logDecay	log(1 - step * lambda), the log of the per step shrinkage.
+	 */
+	void performDelayedRegularization(int[] featureids, int numFeatures,
 			Weights weights,
-			int now, double step, double lambda) {
-		for (int i : featureids) {
-			Integer t = weights.accessTime.get(i);
-			if (t != null) {
-				double w = weights.wHashedFeature[i];
-				weights.wHashedFeature[i]  =  w * Math.pow((1 - step * lambda), now-t-1);
+			int now, double logDecay) {
+		double[] w = weights.wHashedFeature;
+		int[] accessTime = weights.accessTime;
+		for (int j = 0; j < numFeatures; j++) {
+			int i = featureids[j];
+			int t = accessTime[i];
+			// t >= now only happens with the per thread clocks of
+			// HogwildTrainer, a timestamp never goes back.
+			if (t >= now)
+				continue;
+			if (t >= 0 && logDecay != 0.0) {
+				// (1 - step * lambda)^(now-t-1)
+				w[i] *= Math.exp((now - t - 1) * logDecay);
 			}
-			weights.accessTime.put(i, now);
+			accessTime[i] = now;
+		}
+	}
+
+	/**
+	 * Apply delayed regularization to all the weights, ending the training.
+	 * @param weights
+	 * @param now 	the current timestamp.
+	 * @param logDecay	log(1 - step * lambda), the log of the per step shrinkage.
+	 */
+	private void performDelayedRegularization(Weights weights, int now,
+			double logDecay) {
+		double[] w = weights.wHashedFeature;
+		int[] accessTime = weights.accessTime;
+		for (int i = 0; i < w.length; i++) {
+			int t = accessTime[i];
+			if (t >= 0 && logDecay != 0.0)
+				w[i] *= Math.exp((now - t - 1) * logDecay);
+			accessTime[i] = now;
 		}
 	}
 
@@ -111,53 +333,68 @@ public class LogisticRegressionWithHashing {
 	 */
 	public Weights train(DataSet dataset, int dim, double lambda, double step, ArrayList<Double> AvgLoss,
 			boolean personalized) {
+		return train(dataset, dim, lambda, step, AvgLoss, personalized, null, 0);
+	}
+
+	/**
+	 * Same as train(dataset, dim, lambda, step, AvgLoss, personalized), also
+	 * publishing a snapshot of the weights to the registry every publishEvery
+	 * instances and at the end, so that the model can be served while it is
+	 * trained. A snapshot copies the dim weights.
+	 * 
+	 * @param registry	where to publish, or null.
+	 * @param publishEvery	the number of instances between two snapshots,
+	 * 				positive if registry is not null.
+	 * @return the weights for the model.
+	 */
+	public Weights train(DataSet dataset, int dim, double lambda, double step, ArrayList<Double> AvgLoss,
+			boolean personalized, ModelRegistry registry, int publishEvery) {
+		if (registry != null && publishEvery <= 0)
+			throw new IllegalArgumentException("publishEvery=" + publishEvery);
 		Weights weights = new Weights(dim);
 		int count = 0;
 		double loss = 0.0;
 		System.err.println("Loading data from " + dataset.path + " ... ");
+		HashedDataInstance instance = new HashedDataInstance(dim, personalized);
+		double logDecay = Math.log1p(-step * lambda);
+		if (metrics != null)
+			metrics.start();
 		while (dataset.hasNext()) {
-			HashedDataInstance instance = dataset.nextHashedInstance(dim,
-					personalized);
+			// time one row in TrainingMetrics.SAMPLE stage by stage
+			boolean timed = metrics != null && metrics.beginRow();
+			long t = timed ? System.nanoTime() : 0;
+			t = dataset.advance(instance, timed ? metrics : null, t);
 		
-			performDelayedRegularization(instance.hashedTextFeature.keySet(), weights, count, step, lambda);
+			performDelayedRegularization(instance.hashedIndex, instance.numHashed, weights, count, logDecay);
+			if (timed)
+				t = metrics.lap(TrainingMetrics.REGULARIZE, t);
 			
 			// compute w0 + <w, x>
 			double wx = computeWeightFeatureProduct(weights,
 					instance);
-			double exp = Math.exp(wx);
-			exp = Double.isInfinite(exp) ? (Double.MAX_VALUE - 1) : exp;
-
-			// compute the gradient
-			double grad = (instance.clicked == 1) ? (-1 / (1 + exp)) : (exp / (1 + exp));
-		
-			weights.w0 += -step * grad;
-			weights.wAge += -step * (grad * instance.age + lambda * weights.wAge);
-			weights.wGender += -step
-					* (grad * instance.gender + lambda * weights.wGender);
-			weights.wDepth += -step
-					* (grad * instance.depth + lambda * weights.wDepth);
-			weights.wPosition += -step
-					* (grad * instance.position + lambda * weights.wPosition);
-			
-			// update weights along the negative gradient
-			for (Map.Entry<Integer, Integer> entry: instance.hashedTextFeature.entrySet()) {
-				int key = entry.getKey();
-				weights.wHashedFeature[key] += -step * (grad * entry.getValue() + lambda * weights.wHashedFeature[key]);
-			}
+			if (timed)
+				t = metrics.lap(TrainingMetrics.PRODUCT, t);
+			double ctr = gradientStep(weights, instance, wx, step, lambda);
 			
 			count++;
+			if (registry != null && count % publishEvery == 0)
+				registry.publish(weights.snapshot(count - 1, logDecay, personalized));
 			if (count % 100000 == 0) {
 				System.err.println("Processed " + count + " lines");
 				System.err.println("l2 norm of weights: " + weights.l2norm());
 			}
 			
 			// predict the label, record the loss
-		  int click_hat = (exp / (1+exp)) > 0.5 ? 1 : 0;
+		  int click_hat = ctr > 0.5 ? 1 : 0;
 		  if (click_hat != instance.clicked)
 		  	loss += 1;
 		  if (count % 100 == 0) {
 		  	AvgLoss.add((double)loss/count);
 		  }
+		  if (timed) {
+		  	metrics.lap(TrainingMetrics.UPDATE, t);
+		  	metrics.endRow(dim, 12L * dim);
+		  }
 		}
 		if (count < dataset.size) {
 			System.err.println("Warning: the real size of the data is less than the input size: "
@@ -165,10 +402,11 @@ public class LogisticRegressionWithHashing {
 		}
 		
 		// Final sweep for delayed regularization
-		Set<Integer> allfeatures = new HashSet<Integer>();
-		for (int i = 0; i < weights.wHashedFeature.length; i++)
-			allfeatures.add(i);
-		performDelayedRegularization(allfeatures, weights, count-1, step, lambda);
+		performDelayedRegularization(weights, count-1, logDecay);
+		if (registry != null)
+			registry.publish(weights.freeze(personalized));
+		if (metrics != null)
+			metrics.finish();
 		
 		System.err.println("Done. Total processed instances: " + count);
 		dataset.reset();
@@ -187,9 +425,10 @@ public class LogisticRegressionWithHashing {
 		ArrayList<Double> ctr = new ArrayList<Double>();
 		int count = 0;
 		System.err.println("Loading data from " + dataset.path + " ... ");
+		HashedDataInstance instance = new HashedDataInstance(
+				weights.featuredim, personalized);
 		while (dataset.hasNext()) {
-			HashedDataInstance instance = dataset.nextHashedInstance(
-					weights.featuredim, personalized);
+			dataset.advance(instance);
 			double wx = computeWeightFeatureProduct(weights,
 					instance);
 			double exp = Math.exp(wx);
@@ -211,99 +450,98 @@ public class LogisticRegressionWithHashing {
 		return ctr;
 	}
 
+	/**
+	 * Using the weights to predict CTR in for the test dataset, passing each
+	 * prediction to the evaluator as it is made instead of collecting them.
+	 * 
+	 * @param weights
+	 * @param dataset
+	 * @param personalized
+	 * @param eval
+	 * @param knownUsers
+	 *            The ids of the users counted in eval.subset(), e.g. the users
+	 *            of the training data. Null to count all of them.
+	 * @throws IOException
+	 */
+	public void predict(Weights weights, DataSet dataset,
+			boolean personalized, StreamingEvaluator eval,
+			BitSet knownUsers) throws IOException {
+		int count = 0;
+		System.err.println("Loading data from " + dataset.path + " ... ");
+		HashedDataInstance instance = new HashedDataInstance(
+				weights.featuredim, personalized);
+		HashedBatch batch = new HashedBatch(BATCH_SIZE);
+		double[] ctr = new double[BATCH_SIZE];
+		while (batch.fill(dataset, instance) > 0) {
+			scoreBatch(weights, batch, ctr, false);
+			for (int r = 0; r < batch.size(); r++) {
+				int userid = batch.userid(r);
+				eval.add(ctr[r], knownUsers == null
+						|| (userid >= 0 && knownUsers.get(userid)));
+				count++;
+				if (count % 100000 == 0) {
+					System.err.println("Processed " + count + " lines");
+				}
+			}
+		}
+		if (count < dataset.size) {
+			System.err
+					.println("Warning: the real size of the data is less than the input size: "
+							+ dataset.size + "<" + count);
+		}
+		System.err.println("Done. Total processed instances: " + count);
+		dataset.reset();
+	}
+
+
+	/**
+	 * Save the weights (as text and as a binary snapshot), the evaluation and
+	 * the learning curve of one run to outpathbase/{weights,model,eval,loss}_dim,
+	 * and the predictions the evaluator wrote to the file predictions to
+	 * outpathbase/ctr_dim, under their rmse line.
+	 */
+	static void writeResults(String outpathbase, int dim, Weights weights,
+			boolean personal, double rmse, StreamingEvaluator eval,
+			String predictions, ArrayList<Double> avgLoss) throws IOException {
+		String suffix = "_"+dim;
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outpathbase + "weights" + suffix));
+		writer.write(weights.toString());
+		writer.close();
+		weights.save(outpathbase + "model" + suffix, personal);
+		
+		EvalUtil.writePredictions(outpathbase + "ctr" + suffix, rmse,
+				predictions);
+		
+		writer = new BufferedWriter(new FileWriter(outpathbase + "eval" + suffix));
+		writer.write("rmse: " + rmse + "\n");
+		writer.write("all: " + eval.all() + "\n");
+		writer.write("known users: " + eval.subset() + "\n");
+		writer.close();
+		
+		writer = new BufferedWriter(new FileWriter(outpathbase + "loss" + suffix));
+		for (double loss : avgLoss)
+			writer.write(loss + "\n");
+		writer.close();
+	}
 
 	public static void main(String args[]) throws IOException {
-		int training_size = DataSet.TRAININGSIZE;
-		int testing_size = DataSet.TESTINGSIZE;
-		DataSet training = new DataSet(
-				"data/train.txt",
-				true, training_size);
-		DataSet testing = new DataSet(
-				"data/test.txt",
-				false, testing_size);
-		String solpath = "data/test_label.txt";
-		LogisticRegressionWithHashing lr = new LogisticRegressionWithHashing();
+		SweepRunner sweep = new SweepRunner("data/train.txt",
+				DataSet.TRAININGSIZE, "data/test.txt", DataSet.TESTINGSIZE,
+				"data/test_label.txt");
 		
 		boolean personal = true; // switch this for personalization
 
-		// filter the testing data that has common users in the training set. 
- 		Set<Integer> userInTraining = (new BasicAnalysis()).uniqUsers(training);
-  	ArrayList<Boolean> includeList = new ArrayList<Boolean>();			
-  	while(testing.hasNext()) {
-  		int userid = testing.nextInstance().userid;
-  		if (userInTraining.contains(userid))
-  			includeList.add(true);
-  		else
-  			includeList.add(false);
-  	}
-  	testing.reset();
-		
 		if (!personal) {
   		double step = 0.01;
   		double lambda = 0.001;
   		int[] dims = {97, 12289, 1572869};
   		//int[] dims = {12289};
-  		for (int dim : dims) {
-  			System.err.println("Running dim = " + dim);
-  			ArrayList<Double> avgLoss  = new ArrayList<Double>();
-  			Weights weights = lr.train(training, dim, lambda, step, avgLoss, personal);
-  			ArrayList<Double> ctr_prediction = lr.predict(weights, testing,
-  				personal);
-  			double rmse = EvalUtil.eval(solpath, ctr_prediction);
-  			double rmseKnownUser = EvalUtil.evalWithIncludingList(solpath, ctr_prediction, includeList);
-  		  System.out.println("rmse: " + rmse + "\n");
-  		  System.out.println("rmseKnownUser: " + rmseKnownUser + "\n");
-  		  
-  		  
-  		  // save the weights and the prediction
-  			String outpathbase = "experiments/lrhashing/";
-  			String suffix = "_"+dim;
-  			BufferedWriter writer = new BufferedWriter(new FileWriter(outpathbase + "weights" + suffix));
-  			writer.write(weights.toString());
-  			writer.close();
-  			
-  			writer = new BufferedWriter(new FileWriter(outpathbase + "ctr" + suffix));
-  			writer.write("rmse: " + rmse + "\n");
-  			for (double ctr : ctr_prediction)
-  				writer.write(ctr + "\n");
-  			writer.close();
-  			
-  			writer = new BufferedWriter(new FileWriter(outpathbase + "loss" + suffix));
-  			for (double loss : avgLoss)
-  				writer.write(loss + "\n");
-  			writer.close();
-    	}
+  		sweep.sweepHashing(dims, step, lambda, personal, "experiments/lrhashing/");
   	} else {  		
-  	  		double step = 0.01;
-    		double lambda = 0.001;
-    		int[] dims = {12289};
-    		for (int dim : dims) {
-    			System.err.println("Running dim = " + dim);
-    			ArrayList<Double> avgLoss  = new ArrayList<Double>();
-    			Weights weights = lr.train(training, dim, lambda, step, avgLoss, personal);
-    			ArrayList<Double> ctr_prediction = lr.predict(weights, testing,
-    				personal);
-    			double rmse = EvalUtil.evalWithIncludingList(solpath, ctr_prediction, includeList);
-    		  System.out.println("rmse: " + rmse + "\n");
-    		  
-    		  // save the weights and the prediction
-    			String outpathbase = "experiments/lrpersonal/";
-    			String suffix = "_"+dim;
-    			BufferedWriter writer = new BufferedWriter(new FileWriter(outpathbase + "weights" + suffix));
-    			writer.write(weights.toString());
-    			writer.close();
-    			
-    			writer = new BufferedWriter(new FileWriter(outpathbase + "ctr" + suffix));
-    			writer.write("rmse: " + rmse + "\n");
-    			for (double ctr : ctr_prediction)
-    				writer.write(ctr + "\n");
-    			writer.close();
-    			
-    			writer = new BufferedWriter(new FileWriter(outpathbase + "loss" + suffix));
-    			for (double loss : avgLoss)
-    				writer.write(loss + "\n");
-    			writer.close();  		
-  	}
+  		double step = 0.01;
+  		double lambda = 0.001;
+  		int[] dims = {12289};
+  		sweep.sweepHashing(dims, step, lambda, personal, "experiments/lrpersonal/");
   	}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.io.IOException;
+
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+import edu.uw.cs.biglearn.clickprediction.util.ParseUtil;
+
+/**
+ * A dataset reading the text format through a memory mapped file. Fields are
+ * parsed straight from the mapped bytes into reusable primitive buffers, so no
+ * String is created per line, and reset() only rewinds the read position.
+ * Use {@link #advance(DataInstance)} to also avoid creating a DataInstance.
+ *
+ * @author haijieg
+ *
+ */
+public class MappedDataSet extends DataSet {
+	private final MappedFile file;
+	private final long start;
+	private final long end;
+	private long pos;
+	private final long[] cursor = new long[1]; // pos, for ParseUtil.
+
+	/**
+	 * Creates a dataset from the given path.
+	 *
+	 * @param path
+	 *            Path to the data file living on the disk.
+	 * @param isTraining
+	 *            True if the input is training data.
+	 * @param size
+	 *            The size of the dataset, can be SMALLER than the size of the
+	 *            input.
+	 * @throws IOException
+	 */
+	public MappedDataSet(String path, boolean isTraining, int size)
+			throws IOException {
+		this(new MappedFile(path), isTraining, size);
+	}
+
+	/**
+	 * Creates a dataset over an already mapped file. The mapping can be shared
+	 * with other datasets, each of them has its own read position.
+	 *
+	 * @param file
+	 * @param isTraining
+	 * @param size
+	 */
+	public MappedDataSet(MappedFile file, boolean isTraining, int size) {
+		this(file, isTraining, size, 0, file.length());
+	}
+
+	/**
+	 * Creates a dataset over the lines in the byte range [start, end) of the
+	 * mapped file. start must be the beginning of a line.
+	 */
+	MappedDataSet(MappedFile file, boolean isTraining, int size, long start,
+			long end) {
+		super(file.path, isTraining);
+		this.file = file;
+		this.size = size;
+		this.start = start;
+		this.end = end;
+		this.pos = start;
+	}
+
+	/**
+	 * Splits the dataset into n datasets over disjoint ranges of whole lines,
+	 * sharing the mapping. Together the shards cover the lines of this dataset
+	 * regardless of its size limit.
+	 *
+	 * @param n
+	 * @return the shards, in file order.
+	 */
+	public MappedDataSet[] split(int n) {
+		MappedDataSet[] shards = new MappedDataSet[n];
+		long shardStart = start;
+		for (int i = 0; i < n; i++) {
+			long shardEnd = (i == n - 1) ? end : lineStart(start + (end - start)
+					* (i + 1) / n);
+			shardEnd = Math.max(shardEnd, shardStart);
+			shards[i] = new MappedDataSet(file, hasLabel, Integer.MAX_VALUE,
+					shardStart, shardEnd);
+			shardStart = shardEnd;
+		}
+		return shards;
+	}
+
+	/**
+	 * @return the beginning of the first line starting at or after pos.
+	 */
+	private long lineStart(long pos) {
+		if (pos <= start)
+			return start;
+		return Math.min(end, file.lineStart(pos));
+	}
+
+	@Override
+	public boolean hasNext() {
+		return (counter < size) && pos < end;
+	}
+
+	@Override
+	public DataInstance nextInstance() {
+		return advance(new DataInstance());
+	}
+
+	@Override
+	public DataInstance advance(DataInstance reuse) {
+		counter++;
+		if (hasLabel) {
+			reuse.clicked = parseInt('|');
+		} else {
+			reuse.clicked = -1;
+		}
+		reuse.depth = parseInt('|');
+		reuse.position = parseInt('|');
+		reuse.userid = parseInt('|');
+		int gender = parseInt('|');
+		if (gender != 0) gender = (int)((gender - 1.5) * 2.0); // map gender from {0,1,2} to {-1, 1}
+		reuse.gender = gender;
+		reuse.age = parseInt('|');
+		int n = 0;
+		while (!atLineEnd()) {
+			reuse.ensureCapacity(n + 1);
+			reuse.tokens[n++] = parseInt(',');
+		}
+		reuse.numTokens = n;
+		// skips the line end: \n, \r\n or \r.
+		if (pos < end && file.get(pos) == '\r')
+			pos++;
+		if (pos < end && file.get(pos) == '\n')
+			pos++;
+		return reuse;
+	}
+
+	@Override
+	public void reset() {
+		counter = 0;
+		pos = start;
+	}
+
+	private boolean atLineEnd() {
+		if (pos >= end)
+			return true;
+		byte b = file.get(pos);
+		return b == '\n' || b == '\r';
+	}
+
+	/**
+	 * Parses a (possibly negative) integer at the current position and
+	 * consumes the following separator, but not a line end. Throws
+	 * NumberFormatException like DataInstance.parse on an empty or
+	 * overflowing field, or an unexpected byte.
+	 *
+	 * @param separator
+	 *            The only separator allowed after the field, besides the end
+	 *            of the line.
+	 */
+	private int parseInt(char separator) {
+		cursor[0] = pos;
+		int value = ParseUtil.parseInt(file, cursor, end);
+		pos = cursor[0];
+		if (!atLineEnd()) {
+			if (file.get(pos) != separator)
+				throw ParseUtil.malformed(file, pos);
+			pos++;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,255 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.uw.cs.biglearn.clickprediction.util.TrainingMetrics;
+
+/**
+ * A dataset reading another dataset ahead on a background thread, so that
+ * reading, parsing and hashing the rows overlap with the training instead of
+ * stalling it.
+ *
+ * The rows go through a ring of SLOTS blocks of BLOCK_ROWS preallocated
+ * instances, which are reused for the whole pass: the producer thread fills
+ * a free block from the source and publishes it, the training thread copies
+ * the rows out and releases the block once it moves to the next one. The
+ * producer and the consumer each own one counter of the ring and only read
+ * the other one, so the hand-off takes no lock; a side that finds the ring
+ * full or empty backs off with yield() then short parks.
+ *
+ * If the dataset is created with a dimension, the producer also hashes the
+ * rows, and advance(HashedDataInstance) copies the hashed features of
+ * instances with that dimension and personalization.
+ *
+ * The producer is started by the first hasNext() and stopped by reset() or
+ * at the end of the source. Like any DataSet, it is read by one thread.
+ *
+ * @author haijieg
+ *
+ */
+public class PrefetchingDataSet extends DataSet {
+	static final int BLOCK_ROWS = 1024;
+	static final int SLOTS = 8; // a power of 2
+	private static final int SPINS = 64; // yields before parking
+	private static final long PARK_NANOS = 50000;
+
+	private final DataSet source;
+	private final boolean hashing;
+	private final int dim;
+	private final boolean personal;
+	private final Block[] ring = new Block[SLOTS];
+
+	// the number of blocks published by the producer, and released by the
+	// consumer.
+	private final AtomicLong produced = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private volatile boolean stopped;
+	private volatile Throwable failure;
+	private Thread producer;
+
+	// owned by the consumer.
+	private long acquired;
+	private Block current;
+	private int next;
+
+	/* A block of rows, rows [0, count) are valid. */
+	private static class Block {
+		final DataInstance[] rows = new DataInstance[BLOCK_ROWS];
+		final HashedDataInstance[] hashed;
+		int count;
+		boolean last; // no block follows
+
+		Block(boolean hashing, int dim, boolean personal) {
+			for (int i = 0; i < BLOCK_ROWS; i++)
+				rows[i] = new DataInstance();
+			hashed = hashing ? new HashedDataInstance[BLOCK_ROWS] : null;
+			for (int i = 0; hashing && i < BLOCK_ROWS; i++)
+				hashed[i] = new HashedDataInstance(dim, personal);
+		}
+	}
+
+	/**
+	 * Creates a dataset parsing the source ahead.
+	 *
+	 * @param source
+	 *            Read by the producer thread only, from now on.
+	 */
+	public PrefetchingDataSet(DataSet source) {
+		this(source, false, 0, false);
+	}
+
+	/**
+	 * Creates a dataset parsing and hashing the source ahead.
+	 *
+	 * @param source
+	 *            Read by the producer thread only, from now on.
+	 * @param dim
+	 *            The feature dimension of the hashed instances.
+	 * @param personal
+	 *            True to hash the personalized features.
+	 */
+	public PrefetchingDataSet(DataSet source, int dim, boolean personal) {
+		this(source, true, dim, personal);
+	}
+
+	private PrefetchingDataSet(DataSet source, boolean hashing, int dim,
+			boolean personal) {
+		super(source.path, source.hasLabel);
+		this.source = source;
+		this.size = source.size;
+		this.hashing = hashing;
+		this.dim = dim;
+		this.personal = personal;
+		for (int i = 0; i < SLOTS; i++)
+			ring[i] = new Block(hashing, dim, personal);
+	}
+
+	private void start() {
+		stopped = false;
+		producer = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "prefetch " + path);
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/* The producer loop: fills and publishes blocks until the end. */
+	private void produce() {
+		try {
+			long block = 0;
+			while (true) {
+				for (int spins = 0; block - released.get() >= SLOTS; spins++) {
+					if (stopped)
+						return;
+					backoff(spins);
+				}
+				Block b = ring[(int) (block & (SLOTS - 1))];
+				int n = 0;
+				while (n < BLOCK_ROWS && !stopped && source.hasNext()) {
+					source.advance(b.rows[n]);
+					if (hashing)
+						b.hashed[n].hash(b.rows[n]);
+					n++;
+				}
+				if (stopped)
+					return;
+				b.count = n;
+				b.last = n < BLOCK_ROWS;
+				produced.lazySet(++block); // publishes the block
+				if (b.last)
+					return;
+			}
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+
+	private static void backoff(int spins) {
+		if (spins < SPINS)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(PARK_NANOS);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (counter >= size)
+			return false;
+		while (current == null || next == current.count) {
+			if (current != null) {
+				if (current.last)
+					return false;
+				released.lazySet(acquired); // hands the block back
+				current = null;
+			}
+			if (producer == null)
+				start();
+			for (int spins = 0; produced.get() == acquired; spins++) {
+				if (failure != null)
+					throw new IllegalStateException("Cannot read " + path,
+							failure);
+				backoff(spins);
+			}
+			current = ring[(int) (acquired & (SLOTS - 1))];
+			acquired++;
+			next = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public DataInstance nextInstance() {
+		return advance(new DataInstance());
+	}
+
+	@Override
+	public DataInstance advance(DataInstance reuse) {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		counter++;
+		reuse.copyFrom(current.rows[next++]);
+		return reuse;
+	}
+
+	@Override
+	public HashedDataInstance nextHashedInstance(int featuredim,
+			boolean personal) {
+		return advance(new HashedDataInstance(featuredim, personal));
+	}
+
+	@Override
+	public long advance(HashedDataInstance reuse, TrainingMetrics metrics,
+			long t) {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		counter++;
+		int row = next++;
+		if (hashing && reuse.featuredim == dim && reuse.personal == personal) {
+			reuse.copyFrom(current.hashed[row]);
+			if (metrics != null)
+				t = metrics.lap(TrainingMetrics.READ, t);
+		} else {
+			if (metrics != null)
+				t = metrics.lap(TrainingMetrics.READ, t);
+			reuse.hash(current.rows[row]);
+			if (metrics != null)
+				t = metrics.lap(TrainingMetrics.HASH, t);
+		}
+		return t;
+	}
+
+	/**
+	 * Stops the producer and rewinds the source. The next hasNext() starts
+	 * reading again.
+	 */
+	@Override
+	public void reset() {
+		if (producer != null) {
+			stopped = true;
+			LockSupport.unpark(producer);
+			boolean interrupted = false;
+			while (producer.isAlive()) {
+				try {
+					producer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			producer = null;
+		}
+		source.reset();
+		counter = 0;
+		produced.set(0);
+		released.set(0);
+		failure = null;
+		acquired = 0;
+		current = null;
+		next = 0;
+	}
+}
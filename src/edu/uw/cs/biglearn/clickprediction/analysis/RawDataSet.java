@@ -0,0 +1,173 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.io.IOException;
+
+import edu.uw.cs.biglearn.clickprediction.preprocess.Features;
+import edu.uw.cs.biglearn.clickprediction.preprocess.TokenTable;
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+import edu.uw.cs.biglearn.clickprediction.util.ParseUtil;
+
+/**
+ * A dataset reading the original KDD data (the 12 column schema documented in
+ * JoinFeatureWithData) without the join step. The query, keyword, title and
+ * description ids and the user id are resolved against the Features tables
+ * while reading, so no joined copy of the data is written to disk.
+ *
+ * An instance is clicked if the row has at least one click. Its tokens are the
+ * union of the query, keyword, title and description tokens; an unknown id
+ * contributes the token -1, as in the joined data.
+ *
+ * @author haijieg
+ *
+ */
+public class RawDataSet extends DataSet {
+	private final MappedFile file;
+	private final long start;
+	private final long end;
+	private long pos;
+	private final long[] cursor = new long[1]; // pos, for ParseUtil.
+
+	/**
+	 * Creates a dataset from the given path. The feature tables are loaded if
+	 * they are not already.
+	 *
+	 * @param path
+	 *            Path to the original data file.
+	 * @param isTraining
+	 *            True if the input is training data, which has the click and
+	 *            impression columns.
+	 * @param size
+	 *            The size of the dataset, can be SMALLER than the size of the
+	 *            input.
+	 * @throws IOException
+	 */
+	public RawDataSet(String path, boolean isTraining, int size)
+			throws IOException {
+		this(new MappedFile(path), isTraining, size, 0, -1);
+	}
+
+	private RawDataSet(MappedFile file, boolean isTraining, int size,
+			long start, long end) throws IOException {
+		super(file.path, isTraining);
+		if (Features.queryFeature == null && !Features.loadAllFeatures())
+			throw new IOException("Cannot load the feature tables");
+		this.file = file;
+		this.size = size;
+		this.start = start;
+		this.end = (end < 0) ? file.length() : end;
+		this.pos = start;
+	}
+
+	/**
+	 * Splits the dataset into n datasets over disjoint ranges of whole lines,
+	 * sharing the mapping, e.g. for HogwildTrainer.
+	 *
+	 * @param n
+	 * @return the shards, in file order.
+	 * @throws IOException
+	 */
+	public RawDataSet[] split(int n) throws IOException {
+		RawDataSet[] shards = new RawDataSet[n];
+		long shardStart = start;
+		for (int i = 0; i < n; i++) {
+			long shardEnd = (i == n - 1) ? end : Math.min(end,
+					file.lineStart(start + (end - start) * (i + 1) / n));
+			shardEnd = Math.max(shardEnd, shardStart);
+			shards[i] = new RawDataSet(file, hasLabel, Integer.MAX_VALUE,
+					shardStart, shardEnd);
+			shardStart = shardEnd;
+		}
+		return shards;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return (counter < size) && pos < end;
+	}
+
+	@Override
+	public DataInstance nextInstance() {
+		return advance(new DataInstance());
+	}
+
+	@Override
+	public DataInstance advance(DataInstance reuse) {
+		counter++;
+		if (hasLabel) {
+			reuse.clicked = (parseInt() > 0) ? 1 : 0;
+			skipField(); // impression
+		} else {
+			reuse.clicked = -1;
+		}
+		skipField(); // displayURL
+		skipField(); // AdID
+		skipField(); // AdvertiserID
+		reuse.depth = parseInt();
+		reuse.position = parseInt();
+		int n = 0;
+		n = appendTokens(reuse, n, Features.queryFeature, parseInt());
+		n = appendTokens(reuse, n, Features.keywordFeature, parseInt());
+		n = appendTokens(reuse, n, Features.titleFeature, parseInt());
+		n = appendTokens(reuse, n, Features.descriptionFeature, parseInt());
+		reuse.numTokens = TokenTable.sortUnique(reuse.tokens, n);
+		int userid = parseInt();
+		reuse.userid = userid;
+		if (userid >= 0 && userid < Features.userFeature.size()) {
+			int gender = Features.userFeature.gender(userid);
+			if (gender != 0) gender = (gender == 1) ? -1 : 1; // map gender from {1,2} to {-1, 1}
+			reuse.gender = gender;
+			reuse.age = Features.userFeature.age(userid);
+		} else {
+			reuse.gender = 0;
+			reuse.age = 0;
+		}
+		// skip anything left on the line.
+		while (pos < end && file.get(pos - 1) != '\n')
+			pos++;
+		return reuse;
+	}
+
+	private static int appendTokens(DataInstance instance, int n,
+			TokenTable feature, int id) {
+		if (id < 0 || id >= feature.size()) {
+			instance.ensureCapacity(n + 1);
+			instance.tokens[n] = -1;
+			return n + 1;
+		}
+		instance.ensureCapacity(n + feature.length(id));
+		return n + feature.copyRow(id, instance.tokens, n);
+	}
+
+	@Override
+	public void reset() {
+		counter = 0;
+		pos = start;
+	}
+
+	/**
+	 * Parses a (possibly negative) integer at the current position and
+	 * consumes the following tab or line end. Throws NumberFormatException on
+	 * an empty or overflowing field, or an unexpected byte.
+	 */
+	private int parseInt() {
+		cursor[0] = pos;
+		int value = ParseUtil.parseInt(file, cursor, end);
+		pos = cursor[0];
+		if (pos < end) {
+			byte b = file.get(pos);
+			if (b == '\t' || b == '\n')
+				pos++;
+			else if (b != '\r') // left to the skip at the end of the line.
+				throw ParseUtil.malformed(file, pos);
+		}
+		return value;
+	}
+
+	private void skipField() {
+		while (pos < end) {
+			byte b = file.get(pos++);
+			if (b == '\t' || b == '\n')
+				break;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.uw.cs.biglearn.clickprediction.util.IOUtil;
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+import edu.uw.cs.biglearn.clickprediction.util.StreamingEvaluator;
+import edu.uw.cs.biglearn.clickprediction.util.TrainingMetrics;
+
+/**
+ * Runs a grid of hyperparameters in parallel on a bounded thread pool. The
+ * training and testing files are mapped once; every grid point reads the
+ * shared mapping through its own MappedDataSet. The predictions are
+ * evaluated by a StreamingEvaluator as they are made, which reads the test
+ * labels in lockstep and writes the predictions out, so no run holds them in
+ * memory. The trainers read the shared mapping through a PrefetchingDataSet,
+ * which parses (and hashes) the rows on a second thread while the trainer
+ * runs SGD, so a run keeps THREADS_PER_RUN threads busy and nthreads threads
+ * run nthreads / THREADS_PER_RUN grid points at once.
+ *
+ * A compressed file cannot be mapped; every run then reads (and
+ * decompresses) it through its own DataSet instead.
+ *
+ * Each training run records TrainingMetrics, registered with JMX and dumped
+ * to outpathbase/metrics_<suffix>.csv every METRICS_PERIOD ms.
+ *
+ * @author haijieg
+ *
+ */
+public class SweepRunner {
+	static final long METRICS_PERIOD = 10000;
+	static final int THREADS_PER_RUN = 2; // the trainer and its prefetcher
+	// the predictions are streamed here, then copied under the rmse line.
+	static final String PREDICTIONS_SUFFIX = ".tmp";
+
+	private final String trainpath;
+	private final String testpath;
+	private final MappedFile trainfile; // null if compressed
+	private final MappedFile testfile;
+	private final int trainingSize;
+	private final int testingSize;
+	private final String solpath;
+	private final int nthreads;
+
+	/**
+	 * Creates a runner using all the available processors.
+	 */
+	public SweepRunner(String trainpath, int trainingSize, String testpath,
+			int testingSize, String solpath) throws IOException {
+		this(trainpath, trainingSize, testpath, testingSize, solpath, Runtime
+				.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param nthreads
+	 *            The number of busy threads, at least THREADS_PER_RUN per run.
+	 */
+	public SweepRunner(String trainpath, int trainingSize, String testpath,
+			int testingSize, String solpath, int nthreads) throws IOException {
+		this.trainpath = trainpath;
+		this.testpath = testpath;
+		this.trainfile = map(trainpath);
+		this.testfile = map(testpath);
+		this.trainingSize = trainingSize;
+		this.testingSize = testingSize;
+		this.solpath = solpath;
+		this.nthreads = nthreads;
+	}
+
+	private static MappedFile map(String path) throws IOException {
+		if (IOUtil.format(path) != IOUtil.Format.PLAIN)
+			return null;
+		return new MappedFile(path);
+	}
+
+	/**
+	 * @return a new dataset reading the shared training data.
+	 */
+	public DataSet training() throws IOException {
+		if (trainfile == null)
+			return new DataSet(trainpath, true, trainingSize);
+		return new MappedDataSet(trainfile, true, trainingSize);
+	}
+
+	/**
+	 * @return a new dataset reading the shared testing data.
+	 */
+	public DataSet testing() throws IOException {
+		if (testfile == null)
+			return new DataSet(testpath, false, testingSize);
+		return new MappedDataSet(testfile, false, testingSize);
+	}
+
+	/**
+	 * Trains and evaluates LogisticRegression for every (step, lambda), writing
+	 * the results as LogisticRegression.main did.
+	 */
+	public void sweepLogisticRegression(double[] steps, double[] lambdas,
+			final String outpathbase) {
+		final DecimalFormat formatter = new DecimalFormat("###.####");
+		List<Callable<Void>> runs = new ArrayList<Callable<Void>>();
+		for (final double lambda : lambdas) {
+			for (final double step : steps) {
+				runs.add(new Callable<Void>() {
+					public Void call() throws IOException {
+						System.err.println("Running step = " + step
+								+ ", lambda = " + lambda);
+						String suffix = "_" + formatter.format(step) + "_"
+								+ formatter.format(lambda);
+						// one trainer per run, as the metrics are per run.
+						LogisticRegression lr = new LogisticRegression();
+						TrainingMetrics metrics = startMetrics(outpathbase,
+								"LogisticRegression" + suffix);
+						lr.setMetrics(metrics);
+						ArrayList<Double> AvgLoss = new ArrayList<Double>();
+						LogisticRegression.Weights weights;
+						try {
+							weights = lr.train(new PrefetchingDataSet(training()),
+									lambda, step, AvgLoss);
+						} finally {
+							metrics.close();
+						}
+						String predictions = outpathbase + "ctr" + suffix
+								+ PREDICTIONS_SUFFIX;
+						StreamingEvaluator eval = new StreamingEvaluator(
+								solpath, predictions);
+						try {
+							lr.predict(weights, testing(), eval);
+						} finally {
+							eval.close();
+						}
+						double rmse = eval.all().rmse();
+						System.out.println("step = " + step + ", lambda = "
+								+ lambda + ", rmse: " + rmse + "\n");
+						LogisticRegression.writeResults(outpathbase, step,
+								lambda, weights, eval, predictions, AvgLoss);
+						return null;
+					}
+				});
+			}
+		}
+		runAll(runs);
+	}
+
+	/**
+	 * Trains and evaluates LogisticRegressionWithHashing for every dim,
+	 * writing the results as LogisticRegressionWithHashing.main did.
+	 */
+	public void sweepHashing(int[] dims, final double step,
+			final double lambda, final boolean personal,
+			final String outpathbase) throws IOException {
+		// filter the testing data that has common users in the training set.
+		final BitSet userInTraining = (new BasicAnalysis())
+				.uniqUserBits(training());
+
+		List<Callable<Void>> runs = new ArrayList<Callable<Void>>();
+		for (final int dim : dims) {
+			runs.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					System.err.println("Running dim = " + dim);
+					// one trainer per run, as the metrics are per run.
+					LogisticRegressionWithHashing lr = new LogisticRegressionWithHashing();
+					TrainingMetrics metrics = startMetrics(outpathbase,
+							"LogisticRegressionWithHashing_" + dim);
+					lr.setMetrics(metrics);
+					ArrayList<Double> avgLoss = new ArrayList<Double>();
+					LogisticRegressionWithHashing.Weights weights;
+					try {
+						weights = lr.train(new PrefetchingDataSet(training(),
+								dim, personal), dim, lambda, step, avgLoss,
+								personal);
+					} finally {
+						metrics.close();
+					}
+					String predictions = outpathbase + "ctr_" + dim
+							+ PREDICTIONS_SUFFIX;
+					StreamingEvaluator eval = new StreamingEvaluator(solpath,
+							predictions);
+					try {
+						lr.predict(weights, testing(), personal, eval,
+								userInTraining);
+					} finally {
+						eval.close();
+					}
+					double rmseKnownUser = eval.subset().rmse();
+					double rmse;
+					if (!personal) {
+						rmse = eval.all().rmse();
+						System.out.println("dim = " + dim + ", rmse: " + rmse
+								+ "\n");
+						System.out.println("dim = " + dim + ", rmseKnownUser: "
+								+ rmseKnownUser + "\n");
+					} else {
+						rmse = rmseKnownUser;
+						System.out.println("dim = " + dim + ", rmse: " + rmse
+								+ "\n");
+					}
+					LogisticRegressionWithHashing.writeResults(outpathbase,
+							dim, weights, personal, rmse, eval, predictions,
+							avgLoss);
+					return null;
+				}
+			});
+		}
+		runAll(runs);
+	}
+
+	/**
+	 * @return metrics registered under the name and dumped to
+	 *         outpathbase/metrics_name.csv.
+	 */
+	private static TrainingMetrics startMetrics(String outpathbase,
+			String name) throws IOException {
+		TrainingMetrics metrics = new TrainingMetrics();
+		metrics.register(name);
+		metrics.dumpEvery(outpathbase + "metrics_" + name + ".csv",
+				METRICS_PERIOD);
+		return metrics;
+	}
+
+	private void runAll(List<Callable<Void>> runs) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(nthreads / THREADS_PER_RUN, runs.size())));
+		try {
+			for (Future<Void> result : pool.invokeAll(runs))
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
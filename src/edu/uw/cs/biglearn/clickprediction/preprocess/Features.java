@@ -1,118 +1,350 @@
 package edu.uw.cs.biglearn.clickprediction.preprocess;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Scanner;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+import edu.uw.cs.biglearn.clickprediction.util.ParseUtil;
 
 /**
  * 
  * Temporary storage class for loading features from separate feature files:
- * Each feature file represented as an ArrayList of a token (integer) set, the
- * index of the array is the id of the feature.
+ * Each feature file represented as a TokenTable mapping the id of the feature
+ * to its sorted token list, and the user profiles as a UserTable.
  * 
  * @author haijieg
  * 
  */
 public class Features {
-	public static ArrayList<Set<Integer>> descriptionFeature;
-	public static ArrayList<Set<Integer>> keywordFeature;
-	public static ArrayList<Set<Integer>> queryFeature;
-	public static ArrayList<Set<Integer>> titleFeature;
-	public static ArrayList<int[]> userFeature;
+	public static TokenTable descriptionFeature;
+	public static TokenTable keywordFeature;
+	public static TokenTable queryFeature;
+	public static TokenTable titleFeature;
+	public static UserTable userFeature;
+
+	private static final long CHUNK_SIZE = 16 << 20; // bytes parsed per task
+	private static final String[] FILES = { "descriptionid_tokensid.txt",
+			"titleid_tokensid.txt", "purchasedkeywordid_tokensid.txt",
+			"queryid_tokensid.txt", "userid_profile.txt" };
+	public static final String INDEX = "features.idx";
+	private static final int INDEX_MAGIC = 0x46544931; // "FTI1"
+	private static final int INDEX_VERSION = 1;
 
 	/**
 	 * Load query, keywork, title and description features. Path to the feature
 	 * file is hard coded. Size of each feature file is hard coded.
 	 * 
+	 * The tables are memory mapped from the binary index features.idx next to
+	 * the feature files when it is newer than all of them. Otherwise the text
+	 * files are parsed and the index is written for the next start.
+	 * 
 	 * @return
 	 * 
 	 */
 	public static boolean loadAllFeatures() {
 		String basepath = "/usr1/haijieg/kdd/features/";
 		// String basepath = "/Users/haijieg/workspace/kdd2012/features/";
-		descriptionFeature = new ArrayList<Set<Integer>>(3171830);
-		titleFeature = new ArrayList<Set<Integer>>(4051441);
-		queryFeature = new ArrayList<Set<Integer>>(26243606);
-		keywordFeature = new ArrayList<Set<Integer>>(1249785);
-		userFeature = new ArrayList<int[]>(23907635);
+		return loadAllFeatures(basepath);
+	}
+
+	/**
+	 * Load the features from the feature files in the given directory, e.g.
+	 * the ones written by SyntheticData.
+	 * 
+	 * @param basepath
+	 *            The directory of the feature files, ending with '/'.
+	 * @return
+	 */
+	public static boolean loadAllFeatures(String basepath) {
+		File index = new File(basepath, INDEX);
+		if (isIndexCurrent(index, basepath)) {
+			try {
+				mapIndex(index.getPath());
+				return true;
+			} catch (IOException e) {
+				System.err.println("Warning: cannot map " + index + ": " + e);
+			}
+		}
+		if (!loadTextFeatures(basepath))
+			return false;
 		try {
-			loadUserFeature(basepath + "userid_profile.txt", userFeature);
-			loadTokenFeature(basepath + "descriptionid_tokensid.txt",
-					descriptionFeature);
-			loadTokenFeature(basepath + "titleid_tokensid.txt", titleFeature);
-			loadTokenFeature(basepath + "purchasedkeywordid_tokensid.txt",
-					keywordFeature);
-			loadTokenFeature(basepath + "queryid_tokensid.txt", queryFeature);
+			saveIndex(index.getPath());
+		} catch (IOException e) {
+			System.err.println("Warning: cannot write " + index + ": " + e);
+		}
+		return true;
+	}
+
+	private static boolean isIndexCurrent(File index, String basepath) {
+		if (!index.isFile())
+			return false;
+		for (String name : FILES) {
+			if (new File(basepath, name).lastModified() > index.lastModified())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes all the tables to a binary index file: magic (int), version
+	 * (int), then the description, title, keyword and query TokenTables and
+	 * the UserTable in their write() format. The file is written under a temporary name and
+	 * renamed, so readers never see a partial index.
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void saveIndex(String path) throws IOException {
+		File tmp = new File(path + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			descriptionFeature.write(out);
+			titleFeature.write(out);
+			keywordFeature.write(out);
+			queryFeature.write(out);
+			userFeature.write(out);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(path)))
+			throw new IOException("Cannot rename " + tmp + " to " + path);
+		System.err.println("Wrote feature index " + path);
+	}
+
+	/**
+	 * Opens the tables from a binary index file written by saveIndex(). The
+	 * tables are read in place from the mapping, so this takes constant time
+	 * and processes mapping the same index share its pages.
+	 * 
+	 * @param path
+	 * @throws IOException
+	 *             if the file is not an index of this version, or its table
+	 *             sizes do not add up to the file length.
+	 */
+	public static void mapIndex(String path) throws IOException {
+		MappedFile file = new MappedFile(path);
+		if (file.length() < 8 || file.getInt(0) != INDEX_MAGIC)
+			throw new IOException("Not a feature index: " + path);
+		int version = file.getInt(4);
+		if (version != INDEX_VERSION)
+			throw new IOException("Unsupported feature index version "
+					+ version + ": " + path);
+		long pos = 8;
+		TokenTable[] tables = new TokenTable[4];
+		for (int i = 0; i < tables.length; i++) {
+			tables[i] = TokenTable.map(file, pos);
+			pos += tables[i].byteSize();
+		}
+		UserTable users = UserTable.map(file, pos);
+		pos += users.byteSize();
+		if (pos != file.length())
+			throw new IOException("Trailing bytes in feature index: " + path);
+		// only replaces the tables once the whole index checked out.
+		descriptionFeature = tables[0];
+		titleFeature = tables[1];
+		keywordFeature = tables[2];
+		queryFeature = tables[3];
+		userFeature = users;
+		System.err.println("Mapped feature index " + path);
+	}
+
+	/**
+	 * Load the tables from the text feature files. All five files are loaded
+	 * concurrently, and each file is cut into chunks of whole lines that are
+	 * parsed in parallel.
+	 * 
+	 * @param basepath
+	 * @return
+	 */
+	private static boolean loadTextFeatures(String basepath) {
+		userFeature = new UserTable(23907635);
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			List<Future<Integer>> users = loadUserFeature(pool, basepath
+					+ FILES[4], userFeature);
+			List<Future<TokenTable>> descriptions = loadTokenFeature(pool,
+					basepath + FILES[0]);
+			List<Future<TokenTable>> titles = loadTokenFeature(pool, basepath
+					+ FILES[1]);
+			List<Future<TokenTable>> keywords = loadTokenFeature(pool,
+					basepath + FILES[2]);
+			List<Future<TokenTable>> queries = loadTokenFeature(pool, basepath
+					+ FILES[3]);
+			int lines = 0;
+			for (Future<Integer> chunk : users)
+				lines += chunk.get();
+			System.err.println("Loaded " + lines + " users");
+			descriptionFeature = collect(descriptions, "descriptions");
+			titleFeature = collect(titles, "titles");
+			keywordFeature = collect(keywords, "keywords");
+			queryFeature = collect(queries, "queries");
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
+		} finally {
+			pool.shutdown();
 		}
 		return true;
 	}
 
-	private static void loadUserFeature(String path, ArrayList<int[]> feature)
-			throws FileNotFoundException {
-		for (int i = 0; i < 23907635; i++)
-			userFeature.add(new int[] { 0, 0 });
+	/**
+	 * Cuts the file into chunks of whole lines.
+	 * 
+	 * @return the chunk boundaries, chunk i is [bounds[i], bounds[i+1]).
+	 */
+	private static long[] chunks(MappedFile file) {
+		int n = (int) Math.max(1, file.length() / CHUNK_SIZE);
+		long[] bounds = new long[n + 1];
+		for (int i = 1; i < n; i++)
+			bounds[i] = file.lineStart(file.length() * i / n);
+		bounds[n] = file.length();
+		return bounds;
+	}
+
+	private static List<Future<Integer>> loadUserFeature(
+			ExecutorService pool, String path, final UserTable feature)
+			throws IOException {
 		System.err.println("Loading feature from " + path);
-		Scanner sc = new Scanner(new BufferedReader(new FileReader(path)));
-		int line = 0;
-		while (sc.hasNextLine()) {
-			String[] fields = sc.nextLine().split("\t");
-			int uid = Integer.parseInt(fields[0]);
-			feature.set(
-					uid,
-					new int[] { Integer.parseInt(fields[1]),
-							Integer.parseInt(fields[2]) });
-			line++;
-			if (line % 1000000 == 0)
-				System.err.println("Loaded " + line + " lines");
+		final MappedFile file = new MappedFile(path);
+		final long[] bounds = chunks(file);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			final long start = bounds[i];
+			final long end = bounds[i + 1];
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() {
+					// "uid\tgender\tage" per line, chunks set disjoint uids.
+					int lines = 0;
+					long[] pos = { start };
+					while (pos[0] < end) {
+						int uid = parseInt(file, pos, end);
+						int gender = parseInt(file, pos, end);
+						int age = parseInt(file, pos, end);
+						feature.set(uid, gender, age);
+						lines++;
+					}
+					return lines;
+				}
+			}));
 		}
-		System.err.println("Done");
+		return results;
 	}
 
 	/**
 	 * Load feature file from the given path.
 	 * 
 	 * @param path
-	 * @param feature
-	 * @throws FileNotFoundException
+	 * @return one future per chunk of the file, in file order.
+	 * @throws IOException
 	 */
-	private static void loadTokenFeature(String path,
-			ArrayList<Set<Integer>> feature) throws FileNotFoundException {
+	private static List<Future<TokenTable>> loadTokenFeature(
+			ExecutorService pool, String path) throws IOException {
 		System.err.println("Loading feature from " + path);
-		Scanner sc = new Scanner(new BufferedReader(new FileReader(path)));
-		int line = 0;
-		while (sc.hasNextLine()) {
-			feature.add(parseFeature(sc.nextLine()));
-			line++;
-			if (line % 1000000 == 0)
-				System.err.println("Loaded " + line + " lines");
+		final MappedFile file = new MappedFile(path);
+		final long[] bounds = chunks(file);
+		List<Future<TokenTable>> results = new ArrayList<Future<TokenTable>>();
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			final long start = bounds[i];
+			final long end = bounds[i + 1];
+			results.add(pool.submit(new Callable<TokenTable>() {
+				public TokenTable call() {
+					// "id\ttoken|token|..." per line, in id order.
+					TokenTable rows = new TokenTable();
+					int[] row = new int[16];
+					long[] pos = { start };
+					while (pos[0] < end) {
+						parseInt(file, pos, end); // skip the id
+						int n = 0;
+						while (!skipLineEnd(file, pos, end)) {
+							if (n == row.length)
+								row = Arrays.copyOf(row, n * 2);
+							row[n++] = parseInt(file, pos, end);
+						}
+						rows.addRow(row, n);
+					}
+					return rows;
+				}
+			}));
 		}
-		System.err.println("Done");
+		return results;
+	}
+
+	private static TokenTable collect(List<Future<TokenTable>> chunks,
+			String name) throws InterruptedException, ExecutionException {
+		List<TokenTable> parts = new ArrayList<TokenTable>();
+		for (Future<TokenTable> chunk : chunks)
+			parts.add(chunk.get());
+		TokenTable feature = TokenTable.concat(parts);
+		System.err.println("Loaded " + feature.size() + " " + name);
+		return feature;
+	}
+
+	/**
+	 * Parses an integer at pos[0] and moves pos[0] past the separator
+	 * following it: a tab, '|' or the line end, which may be preceded by
+	 * spaces and '\r'. Anything else, an empty field or an overflow throws a
+	 * NumberFormatException with the offset of the bad byte.
+	 */
+	private static int parseInt(MappedFile file, long[] pos, long end) {
+		int value = ParseUtil.parseInt(file, pos, end);
+		long p = pos[0];
+		if (p < end && (file.get(p) == '\t' || file.get(p) == '|'))
+			pos[0] = p + 1;
+		else if (!skipLineEnd(file, pos, end))
+			throw ParseUtil.malformed(file, p);
+		return value;
+	}
+
+	/**
+	 * Tells whether the line ended before pos[0], or only spaces and '\r' are
+	 * left on it; in the latter case pos[0] is moved past the line end. So an
+	 * empty token field gives an empty token list, as in parseFeature().
+	 */
+	private static boolean skipLineEnd(MappedFile file, long[] pos, long end) {
+		long p = pos[0];
+		if (p >= end || file.get(p - 1) == '\n')
+			return true;
+		while (p < end && (file.get(p) == ' ' || file.get(p) == '\r'))
+			p++;
+		if (p < end && file.get(p) != '\n')
+			return false;
+		pos[0] = Math.min(p + 1, end);
+		return true;
 	}
 
 	/**
-	 * Parse a "|" separated token list into a set representing binary
-	 * indicators.
+	 * Parse a "|" separated token list into a sorted array of unique tokens
+	 * representing binary indicators.
 	 * 
 	 * @param line
-	 * @return A set of tokens
+	 * @return The sorted tokens
 	 */
-	private static Set<Integer> parseFeature(String line) {
+	static int[] parseFeature(String line) {
 		StringTokenizer tokenizer = new StringTokenizer(line);
-		Set<Integer> words = new HashSet<Integer>(3);
+		int[] row = new int[line.length() / 2 + 1];
+		int n = 0;
 		String id = tokenizer.nextToken();
 		while (tokenizer.hasMoreElements()) {
 			String token = tokenizer.nextToken("\\|").trim();
-			words.add(Integer.valueOf(token));
+			row[n++] = Integer.parseInt(token);
 		}
-		return words;
+		return Arrays.copyOf(row, TokenTable.sortUnique(row, n));
 	}
 
 	/**
@@ -0,0 +1,242 @@
+package edu.uw.cs.biglearn.clickprediction.preprocess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Joins new segments of the original data (e.g. a daily click log) and appends
+ * them to an existing joined output, instead of rejoining the whole history.
+ *
+ * The joined segments are recorded in a manifest next to the output
+ * (outpath.manifest), one line per segment: path, length of the segment,
+ * length of the output after appending it, and the CRC32 of these fields. A
+ * segment is recorded only after its output is on disk, and the manifest is
+ * synced before the next segment. A partially written last line fails its
+ * checksum and is dropped, and the output is truncated back to the last
+ * recorded length on start, so an interrupted run is simply redone.
+ *
+ * The feature tables are only loaded when there is a new segment to join.
+ *
+ * @author haijieg
+ *
+ */
+public class IncrementalJoin {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String outpath;
+	private final File manifest;
+	private final boolean hasLabel;
+	private final Map<String, Long> joined = new HashMap<String, Long>();
+	private long committed; // length of the output covered by the manifest
+	private long manifestLength; // length of the complete manifest lines
+
+	/**
+	 * Opens the joined output at the given path and reads its manifest.
+	 *
+	 * @param outpath
+	 * @param hasLabel
+	 *            True if the segments are training data.
+	 * @throws IOException
+	 */
+	public IncrementalJoin(String outpath, boolean hasLabel) throws IOException {
+		this.outpath = outpath;
+		this.manifest = new File(outpath + ".manifest");
+		this.hasLabel = hasLabel;
+		if (manifest.isFile())
+			readManifest();
+	}
+
+	private void readManifest() throws IOException {
+		byte[] bytes = new byte[(int) manifest.length()];
+		RandomAccessFile file = new RandomAccessFile(manifest, "r");
+		try {
+			file.readFully(bytes);
+		} finally {
+			file.close();
+		}
+		int start = 0;
+		while (start < bytes.length) {
+			int end = start;
+			while (end < bytes.length && bytes[end] != '\n')
+				end++;
+			String line = new String(bytes, start, end - start, UTF8);
+			String[] fields = line.split("\t");
+			if (end == bytes.length || fields.length != 4
+					|| !fields[3].equals(checksum(fields[0], fields[1], fields[2]))) {
+				if (end < bytes.length)
+					throw new IOException("Corrupt manifest line: " + line);
+				// a partially written last line, its segment is redone.
+				System.err.println("Warning: ignoring manifest line: " + line);
+				break;
+			}
+			joined.put(fields[0], Long.parseLong(fields[1]));
+			committed = Long.parseLong(fields[2]);
+			start = end + 1;
+			manifestLength = start;
+		}
+	}
+
+	/**
+	 * @return the CRC32 of the manifest fields, in hex.
+	 */
+	private static String checksum(String path, String length, String committed) {
+		CRC32 crc = new CRC32();
+		crc.update((path + "\t" + length + "\t" + committed).getBytes(UTF8));
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * @return the segments that are not joined yet, in the given order, each
+	 *         once even if it is given under several paths. Segments that
+	 *         changed after they were joined are reported and skipped, since
+	 *         their output cannot be replaced.
+	 */
+	public List<String> newSegments(List<String> segments) throws IOException {
+		List<String> result = new ArrayList<String>();
+		Set<String> seen = new HashSet<String>();
+		for (String segment : segments) {
+			File file = new File(segment);
+			String path = file.getCanonicalPath();
+			Long length = joined.get(path);
+			if (!seen.add(path)) {
+				System.err.println("Warning: " + segment
+						+ " is given twice, joining it once");
+			} else if (length == null) {
+				result.add(segment);
+			} else if (length != file.length()) {
+				System.err.println("Warning: " + segment
+						+ " changed since it was joined, skipping it");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Joins the new segments and appends them to the output.
+	 *
+	 * @param featurepath
+	 *            The directory of the feature files, ending with '/'.
+	 * @param segments
+	 *            The input segments, in output order.
+	 * @return the number of joined segments.
+	 * @throws IOException
+	 */
+	public int run(String featurepath, List<String> segments)
+			throws IOException {
+		List<String> todo = newSegments(segments);
+		if (todo.isEmpty()) {
+			System.err.println("Nothing to join into " + outpath);
+			return 0;
+		}
+		if (Features.queryFeature == null
+				&& !Features.loadAllFeatures(featurepath))
+			throw new IOException("Cannot load the feature tables from "
+					+ featurepath);
+		truncateManifest();
+		truncateOutput();
+
+		int nthreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService workers = Executors.newFixedThreadPool(nthreads);
+		ExecutorService writers = Executors.newSingleThreadExecutor();
+		try {
+			for (String segment : todo) {
+				JoinFeatureWithData.join(segment, outpath, hasLabel, true,
+						workers, writers, JoinFeatureWithData.WINDOW * nthreads);
+				commit(segment);
+			}
+		} finally {
+			writers.shutdown();
+			workers.shutdown();
+		}
+		return todo.size();
+	}
+
+	/**
+	 * Drops a partially written last line of the manifest, so the next line
+	 * starts on a line of its own.
+	 */
+	private void truncateManifest() throws IOException {
+		if (!manifest.isFile() || manifest.length() == manifestLength)
+			return;
+		RandomAccessFile file = new RandomAccessFile(manifest, "rw");
+		try {
+			file.setLength(manifestLength);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Drops any output beyond the manifest, left by an interrupted run.
+	 */
+	private void truncateOutput() throws IOException {
+		RandomAccessFile out = new RandomAccessFile(outpath, "rw");
+		try {
+			if (out.length() < committed)
+				throw new IOException(outpath + " is shorter than its manifest");
+			if (out.length() > committed) {
+				System.err.println("Warning: dropping " + (out.length() - committed)
+						+ " bytes of unfinished output from " + outpath);
+				out.setLength(committed);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Syncs the output, then records the segment in the manifest and syncs
+	 * it.
+	 */
+	private void commit(String segment) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(outpath, "rw");
+		try {
+			out.getChannel().force(true);
+			committed = out.length();
+		} finally {
+			out.close();
+		}
+		File file = new File(segment);
+		String path = file.getCanonicalPath();
+		String length = Long.toString(file.length());
+		String end = Long.toString(committed);
+		byte[] line = (path + "\t" + length + "\t" + end + "\t"
+				+ checksum(path, length, end) + "\n").getBytes(UTF8);
+		FileOutputStream writer = new FileOutputStream(manifest, true);
+		try {
+			writer.write(line);
+			writer.getFD().sync();
+		} finally {
+			writer.close();
+		}
+		manifestLength += line.length;
+		joined.put(path, file.length());
+	}
+
+	/**
+	 * Usage: IncrementalJoin train|test outpath featurepath segment...
+	 */
+	public static void main(String args[]) throws IOException {
+		if (args.length < 4) {
+			System.err.println("Usage: IncrementalJoin train|test outpath featurepath segment...");
+			System.exit(1);
+		}
+		IncrementalJoin join = new IncrementalJoin(args[1],
+				args[0].equals("train"));
+		int n = join.run(args[2], Arrays.asList(args).subList(3, args.length));
+		System.err.println("Joined " + n + " new segments into " + args[1]);
+	}
+}
@@ -1,21 +1,36 @@
 package edu.uw.cs.biglearn.clickprediction.preprocess;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
-import edu.uw.cs.biglearn.clickprediction.util.StringUtil;
+import edu.uw.cs.biglearn.clickprediction.util.ChunkReader;
+import edu.uw.cs.biglearn.clickprediction.util.IOUtil;
 
 /**
  * The program to join the training and testing data with the additional feature
  * file. Path to the training/testing data is hard coded.
  * 
+ * Each input is joined by a pipeline: the reader cuts the file into chunks of
+ * whole lines, a shared pool of workers joins the chunks in parallel, and the
+ * writer writes the joined chunks in input order. At most WINDOW chunks are in
+ * flight per input, which bounds the memory. Training and testing data are
+ * joined concurrently.
+ * 
  * @author haijieg
  * 
  */
@@ -44,122 +59,281 @@ import edu.uw.cs.biglearn.clickprediction.util.StringUtil;
  * tokens
  */
 public class JoinFeatureWithData {
+	private static final int CHUNK_SIZE = 4 << 20; // bytes joined per task
+	static final int WINDOW = 4; // chunks in flight per worker
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	/* joined bytes per input byte assumed before the first chunk is joined. */
+	private static final int EXPANSION = 3;
 
+	/**
+	 * Joins a line of the original data.
+	 * 
+	 * @param line
+	 * @param hasLabel
+	 *            True if the line has the click and impression fields.
+	 * @return the fields of the joined line, as appended by appendLine.
+	 */
 	public static ArrayList<String> processLine(String line, boolean hasLabel) {
+		StringBuilder builder = new StringBuilder();
+		appendLine(builder, line, hasLabel);
+		return new ArrayList<String>(Arrays.asList(builder.toString().split(
+				"\\|")));
+	}
+
+	/**
+	 * Appends the joined line, without a line break, to the builder.
+	 * 
+	 * @param builder
+	 * @param line
+	 *            A line of the original data.
+	 * @param hasLabel
+	 *            True if the line has the click and impression fields.
+	 */
+	public static void appendLine(StringBuilder builder, String line,
+			boolean hasLabel) {
 		StringTokenizer tokenizer = new StringTokenizer(line, "\t");
-		ArrayList<String> filteredTokens = new ArrayList<String>();
 		if (hasLabel) {
-			filteredTokens.add(tokenizer.nextToken()); // push click
-			filteredTokens.add(tokenizer.nextToken()); // push impression
+			builder.append(tokenizer.nextToken()).append('|'); // push click
+			builder.append(tokenizer.nextToken()).append('|'); // push impression
 		}
 		tokenizer.nextToken(); // ignore displayURL
 		tokenizer.nextToken(); // ignore AdID
 		tokenizer.nextToken(); // ignore AdvertiserID
-		filteredTokens.add(tokenizer.nextToken()); // push depth
-		filteredTokens.add(tokenizer.nextToken()); // push position
+		builder.append(tokenizer.nextToken()).append('|'); // push depth
+		builder.append(tokenizer.nextToken()).append('|'); // push position
 
-		// replace query id with query tokens
-		int queryid = Integer.valueOf(tokenizer.nextToken().trim());
-		if (queryid < Features.queryFeature.size()) {
-			filteredTokens.add(StringUtil.implode(
-					Features.queryFeature.get(queryid).iterator(), ","));
+		// replace query, keyword, title and description ids with their tokens
+		appendTokens(builder, Features.queryFeature, "queryid",
+				tokenizer.nextToken(), line);
+		builder.append('|');
+		appendTokens(builder, Features.keywordFeature, "keyword id",
+				tokenizer.nextToken(), line);
+		builder.append('|');
+		appendTokens(builder, Features.titleFeature, "title id",
+				tokenizer.nextToken(), line);
+		builder.append('|');
+		appendTokens(builder, Features.descriptionFeature, "descriptionid",
+				tokenizer.nextToken(), line);
+		builder.append('|');
+
+		// replace user id with the user profile
+		int userid = Integer.valueOf(tokenizer.nextToken().trim());
+		builder.append(userid).append(',');
+		if (userid < Features.userFeature.size()) {
+			builder.append(Features.userFeature.gender(userid)).append(',')
+					.append(Features.userFeature.age(userid));
 		} else {
-			filteredTokens.add("-1");
-			System.err.println("Warning: unknown queryid=" + queryid);
-			System.err.println("Line: " + line);
+			builder.append("0,0");
+			System.err.println("Warning: unknown userid=" + userid
+					+ "\nLine: " + line);
 		}
+	}
 
-		// replace keyword id with keyword tokens
-		int keywordid = Integer.valueOf(tokenizer.nextToken().trim());
-		if (keywordid < Features.keywordFeature.size()) {
-			filteredTokens.add(StringUtil.implode(
-					Features.keywordFeature.get(keywordid).iterator(), ","));
+	private static void appendTokens(StringBuilder builder, TokenTable feature,
+			String name, String field, String line) {
+		int id = Integer.valueOf(field.trim());
+		if (id < feature.size()) {
+			feature.appendRow(builder, id, ',');
 		} else {
-			filteredTokens.add("-1");
-			System.err.println("Warning: unknown keyword id=" + keywordid);
-			System.err.println("Line: " + line);
+			builder.append("-1");
+			System.err.println("Warning: unknown " + name + "=" + id
+					+ "\nLine: " + line);
 		}
+	}
 
-		// replace title id with title tokens
-		int titleid = Integer.valueOf(tokenizer.nextToken().trim());
-		if (titleid < Features.titleFeature.size()) {
-			filteredTokens.add(StringUtil.implode(
-					Features.titleFeature.get(titleid).iterator(), ","));
-		} else {
-			filteredTokens.add("-1");
-			System.err.println("Warning: unknown title id=" + titleid);
-			System.err.println("Line: " + line);
+	/**
+	 * Joins a chunk of whole lines.
+	 * 
+	 * @param expected
+	 *            The expected length of the joined lines, sizes the buffer.
+	 * @return the joined lines, each ending with a line break.
+	 */
+	static byte[] joinChunk(byte[] chunk, boolean hasLabel, int expected) {
+		StringBuilder builder = new StringBuilder(expected);
+		int start = 0;
+		while (start < chunk.length) {
+			int end = start;
+			while (end < chunk.length && chunk[end] != '\n')
+				end++;
+			int length = end - start;
+			if (length > 0 && chunk[end - 1] == '\r')
+				length--;
+			if (length > 0) {
+				appendLine(builder, new String(chunk, start, length, LATIN1),
+						hasLabel);
+				builder.append('\n');
+			}
+			start = end + 1;
 		}
+		return builder.toString().getBytes(LATIN1);
+	}
 
-		// replace description id with description tokens.
-		int descriptionid = Integer.valueOf(tokenizer.nextToken().trim());
-		if (descriptionid < Features.descriptionFeature.size()) {
-			filteredTokens.add(StringUtil.implode(Features.descriptionFeature
-					.get(descriptionid).iterator(), ","));
-		} else {
-			filteredTokens.add("-1");
-			System.err.println("Warning: unknown descriptionid="
-					+ descriptionid);
-			System.err.println("Line: " + line);
+	/**
+	 * Joins the data at inpath into outpath. The calling thread reads the
+	 * input, the chunks are joined on the workers pool, and the output is
+	 * written on the writers pool. A compressed input is decompressed while
+	 * it is read (see IOUtil.open).
+	 * 
+	 * @param inpath
+	 * @param outpath
+	 * @param hasLabel
+	 *            True for training data.
+	 * @param append
+	 *            True to append to outpath instead of overwriting it.
+	 * @param workers
+	 * @param writers
+	 * @param window
+	 *            The maximum number of chunks in flight.
+	 * @return the number of bytes written.
+	 */
+	public static long join(final String inpath, final String outpath,
+			final boolean hasLabel, final boolean append,
+			ExecutorService workers,
+			ExecutorService writers, int window) throws IOException {
+		System.err.println("Processing input data from: " + inpath);
+		final BlockingQueue<Future<byte[]>> pending = new ArrayBlockingQueue<Future<byte[]>>(
+				window);
+		final Future<byte[]> done = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+					public byte[] call() {
+						return null;
+					}
+				});
+		Future<Long> writer = writers.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				OutputStream out = null;
+				long bytes = 0;
+				int chunks = 0;
+				Exception error = null;
+				try {
+					out = new BufferedOutputStream(new FileOutputStream(
+							outpath, append), 1 << 16);
+				} catch (IOException e) {
+					error = e;
+				}
+				try {
+					for (Future<byte[]> chunk = pending.take(); chunk != done; chunk = pending
+							.take()) {
+						// keep draining after an error, so the reader never
+						// blocks on a full queue.
+						if (error != null) {
+							chunk.cancel(false);
+							continue;
+						}
+						try {
+							byte[] joined = chunk.get();
+							out.write(joined);
+							bytes += joined.length;
+							if (++chunks % 25 == 0)
+								System.err.println("Processed " + (bytes >> 20)
+										+ "MB into " + outpath);
+						} catch (Exception e) {
+							error = e;
+						}
+					}
+				} finally {
+					if (out != null)
+						out.close();
+				}
+				if (error != null)
+					throw error;
+				return bytes;
+			}
+		});
+
+		// the bytes joined so far, to size the output of the next chunks.
+		final AtomicLong inBytes = new AtomicLong();
+		final AtomicLong outBytes = new AtomicLong();
+		try {
+			ChunkReader reader = new ChunkReader(IOUtil.open(inpath),
+					CHUNK_SIZE);
+			try {
+				for (byte[] chunk = reader.next(); chunk != null; chunk = reader
+						.next()) {
+					final byte[] lines = chunk;
+					pending.put(workers.submit(new Callable<byte[]>() {
+						public byte[] call() {
+							long in = inBytes.get();
+							double expansion = (in == 0) ? EXPANSION
+									: 1.1 * outBytes.get() / in;
+							byte[] joined = joinChunk(lines, hasLabel,
+									(int) Math.min(Integer.MAX_VALUE - 8,
+											lines.length * expansion + 16));
+							inBytes.addAndGet(lines.length);
+							outBytes.addAndGet(joined.length);
+							return joined;
+						}
+					}));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			// also when the input cannot be opened, so the writer ends.
+			finish(pending, done);
 		}
 
-		// replace description id with description tokens
-		int userid = Integer.valueOf(tokenizer.nextToken().trim());
-		if (userid < Features.userFeature.size()) {
-			filteredTokens
-					.add(userid
-							+ ","
-							+ StringUtil.implode(
-									Features.userFeature.get(userid), ","));
-		} else {
-			filteredTokens.add(userid + ",0,0");
-			System.err.println("Warning: unknown userid=" + userid);
-			System.err.println("Line: " + line);
+		try {
+			long bytes = writer.get();
+			System.err.println("Done " + outpath);
+			return bytes;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to join " + inpath, e.getCause());
 		}
-		return filteredTokens;
 	}
 
-	public static void main(String args[]) throws FileNotFoundException,
-			IOException {
-		Features.loadAllFeatures();
-		String trainpath = "/usr1/haijieg/kdd/small/data/train.txt";
-		Scanner sc = new Scanner(new BufferedReader(new FileReader(trainpath)));
-		FileWriter ftrainstream = new FileWriter(
-				"/usr1/haijieg/kdd/small/datawithfeature/train.txt");
-		BufferedWriter trainout = new BufferedWriter(ftrainstream);
-		System.err.println("Processing input data from: " + trainpath);
-		int count = 0;
-		while (sc.hasNextLine()) {
-			String line = sc.nextLine();
-			ArrayList<String> filteredline = processLine(line, true);
-			String output = StringUtil.implode(filteredline.iterator(), "|")
-					+ "\n";
-			trainout.write(output);
-			count++;
-			if (count % 100000 == 0)
-				System.err.println("Processed " + count + " lines");
+	/**
+	 * Queues the end marker even when interrupted: the writer drains the
+	 * queue until it sees the marker.
+	 */
+	private static void finish(BlockingQueue<Future<byte[]>> pending,
+			Future<byte[]> done) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				pending.put(done);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
 		}
-		System.err.println("Done");
-		trainout.close();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
 
-		String testpath = "/usr1/haijieg/kdd/small/data/test.txt";
-		sc = new Scanner(new BufferedReader(new FileReader(testpath)));
-		FileWriter fteststream = new FileWriter(
-				"/usr1/haijieg/kdd/small/datawithfeature/test.txt");
-		BufferedWriter testout = new BufferedWriter(fteststream);
-		System.err.println("Processing input data from: " + testpath);
-		count = 0;
-		while (sc.hasNextLine()) {
-			String line = sc.nextLine();
-			ArrayList<String> filteredline = processLine(line, false);
-			String output = StringUtil.implode(filteredline.iterator(), "|")
-					+ "\n";
-			testout.write(output);
-			count++;
-			if (count % 100000 == 0)
-				System.err.println("Processed " + count + " lines");
+	public static void main(String args[]) throws Exception {
+		Features.loadAllFeatures();
+		final int nthreads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService workers = Executors.newFixedThreadPool(nthreads);
+		final ExecutorService writers = Executors.newFixedThreadPool(2);
+		ExecutorService readers = Executors.newFixedThreadPool(2);
+		try {
+			Future<Long> train = readers.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					return join("/usr1/haijieg/kdd/small/data/train.txt",
+							"/usr1/haijieg/kdd/small/datawithfeature/train.txt",
+							true, false, workers, writers, WINDOW * nthreads);
+				}
+			});
+			Future<Long> test = readers.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					return join("/usr1/haijieg/kdd/small/data/test.txt",
+							"/usr1/haijieg/kdd/small/datawithfeature/test.txt",
+							false, false, workers, writers, WINDOW * nthreads);
+				}
+			});
+			train.get();
+			test.get();
+		} finally {
+			readers.shutdown();
+			writers.shutdown();
+			workers.shutdown();
 		}
-		System.err.println("Done");
-		testout.close();
 	}
 }
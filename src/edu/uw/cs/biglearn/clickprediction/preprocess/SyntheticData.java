@@ -0,0 +1,497 @@
+package edu.uw.cs.biglearn.clickprediction.preprocess;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.uw.cs.biglearn.clickprediction.util.HashUtil;
+import edu.uw.cs.biglearn.clickprediction.util.Zipf;
+
+/**
+ * Generates synthetic data shaped like the KDD Cup 2012 track 2 data, for
+ * load testing the join, the datasets and the trainers at any size without
+ * the real logs. It writes both schemas:
+ *
+ * - raw: the original 12 column data (see JoinFeatureWithData) and the
+ * feature files it joins with, and
+ *
+ * - joined: click|depth|position|userid|gender|age|tokens, the input of
+ * DataSet, with test_label.txt for the test data.
+ *
+ * Query, ad, user and token ids follow Zipf laws, with id 0 the most frequent
+ * (as userid 0, the unknown user, is in the real data). The dictionaries grow
+ * with the number of rows, up to their size in the real data. The click
+ * probability of a row is a logistic function of hidden weights of its ad and
+ * query (raw) or its tokens (joined) and of its position, so a trained model
+ * has something to learn, and the CTR is about 3.4%. The two schemas are
+ * generated independently: the joined rows are not the join of the raw rows.
+ *
+ * Rows are generated in blocks by a pool of workers and written in order by
+ * a single writer, at most window blocks ahead. Each block has its own seed,
+ * so the output depends on the seed but not on the number of threads.
+ *
+ * @author haijieg
+ *
+ */
+public class SyntheticData {
+	// sizes of the real training data and dictionaries.
+	public static final long KDD_ROWS = 149639105L;
+	static final int KDD_QUERIES = 26243606;
+	static final int KDD_KEYWORDS = 1249785;
+	static final int KDD_TITLES = 4051441;
+	static final int KDD_DESCRIPTIONS = 3171830;
+	static final int KDD_USERS = 23907634;
+	static final int KDD_ADS = 641707;
+	static final int KDD_ADVERTISERS = 14847;
+	public static final int VOCABULARY = 1 << 20; // about the real number of tokens
+	private static final int MIN_SIZE = 1000;
+
+	private static final int BLOCK_ROWS = 1 << 15; // rows generated per task
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	// click model: logit = bias + effects - POSITION * (position - 1)
+	private static final double RAW_BIAS = -3.3;
+	private static final double TOKEN_BIAS = -3.0;
+	private static final double AD_SCALE = 0.8;
+	private static final double QUERY_SCALE = 0.5;
+	private static final double TOKEN_SCALE = 1.2;
+	private static final double POSITION = 0.3;
+
+	private final long seed;
+	private final int numQueries;
+	private final int numKeywords;
+	private final int numTitles;
+	private final int numDescriptions;
+	private final int numUsers;
+	private final int numAds;
+	private final int numAdvertisers;
+	private final Zipf tokens;
+	private final Zipf queries;
+	private final Zipf ads;
+	private final Zipf users;
+
+	/**
+	 * Creates a generator with dictionaries scaled for the given number of
+	 * training rows.
+	 *
+	 * @param rows
+	 *            The number of training rows.
+	 * @param seed
+	 */
+	public SyntheticData(long rows, long seed) {
+		this(rows, VOCABULARY, seed);
+	}
+
+	/**
+	 * @param rows
+	 *            The number of training rows.
+	 * @param vocabulary
+	 *            The number of distinct tokens.
+	 * @param seed
+	 */
+	public SyntheticData(long rows, int vocabulary, long seed) {
+		this.seed = seed;
+		numQueries = scale(KDD_QUERIES, rows);
+		numKeywords = scale(KDD_KEYWORDS, rows);
+		numTitles = scale(KDD_TITLES, rows);
+		numDescriptions = scale(KDD_DESCRIPTIONS, rows);
+		numUsers = scale(KDD_USERS, rows);
+		numAds = scale(KDD_ADS, rows);
+		numAdvertisers = scale(KDD_ADVERTISERS, rows);
+		tokens = new Zipf(vocabulary, 1.05);
+		queries = new Zipf(numQueries, 1.1);
+		ads = new Zipf(numAds, 1.0);
+		users = new Zipf(numUsers, 0.8);
+	}
+
+	/**
+	 * @return the size of the real dictionary scaled by rows / KDD_ROWS, at
+	 *         least MIN_SIZE and at most the real size.
+	 */
+	private static int scale(int size, long rows) {
+		return (int) Math.max(Math.min(size, (double) size * rows / KDD_ROWS),
+				Math.min(size, MIN_SIZE));
+	}
+
+	/* Appends a row to the outputs, each line ending with '\n'. */
+	private abstract class Lines {
+		abstract void append(StringBuilder[] out, Random random, long row);
+	}
+
+	/**
+	 * Writes the original training (12 columns) or testing (10 columns) data.
+	 *
+	 * @param path
+	 * @param rows
+	 * @param hasLabel
+	 *            True to write the click and impression columns.
+	 * @param pool
+	 *            The workers generating the rows.
+	 * @param window
+	 *            The maximum number of blocks in flight.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 */
+	public long writeRaw(String path, long rows, final boolean hasLabel,
+			ExecutorService pool, int window) throws IOException {
+		return write(new String[] { path }, rows, hasLabel ? 1 : 2,
+				new Lines() {
+					void append(StringBuilder[] out, Random random, long row) {
+						appendRaw(out[0], random, hasLabel);
+					}
+				}, pool, window);
+	}
+
+	/**
+	 * Writes joined data in the DataSet schema.
+	 *
+	 * @param path
+	 * @param labelPath
+	 *            If not null, the click probability of each row is written
+	 *            there, as in test_label.txt.
+	 * @param rows
+	 * @param hasLabel
+	 *            True to write the click column.
+	 * @param pool
+	 *            The workers generating the rows.
+	 * @param window
+	 *            The maximum number of blocks in flight.
+	 * @return the number of bytes written to path.
+	 * @throws IOException
+	 */
+	public long writeJoined(String path, String labelPath, long rows,
+			final boolean hasLabel, ExecutorService pool, int window)
+			throws IOException {
+		final boolean withLabels = labelPath != null;
+		String[] paths = withLabels ? new String[] { path, labelPath }
+				: new String[] { path };
+		return write(paths, rows, hasLabel ? 3 : 4, new Lines() {
+			void append(StringBuilder[] out, Random random, long row) {
+				double ctr = appendInstance(out[0], random, hasLabel);
+				out[0].append('\n');
+				if (withLabels)
+					out[1].append(ctr).append('\n');
+			}
+		}, pool, window);
+	}
+
+	/**
+	 * Writes the feature files joined with the raw data: the query, keyword,
+	 * title and description tokens and the user profiles.
+	 *
+	 * @param dir
+	 *            The directory of the feature files, as given to
+	 *            Features.loadAllFeatures.
+	 * @param pool
+	 *            The workers generating the rows.
+	 * @param window
+	 *            The maximum number of blocks in flight.
+	 * @throws IOException
+	 */
+	public void writeFeatures(String dir, ExecutorService pool, int window)
+			throws IOException {
+		writeTokens(dir + "queryid_tokensid.txt", numQueries, 5, 1, 8, pool,
+				window);
+		writeTokens(dir + "purchasedkeywordid_tokensid.txt", numKeywords, 6,
+				1, 4, pool, window);
+		writeTokens(dir + "titleid_tokensid.txt", numTitles, 7, 3, 12, pool,
+				window);
+		writeTokens(dir + "descriptionid_tokensid.txt", numDescriptions, 8,
+				5, 25, pool, window);
+		write(new String[] { dir + "userid_profile.txt" }, numUsers, 9,
+				new Lines() {
+					void append(StringBuilder[] out, Random random, long row) {
+						int userid = (int) row;
+						out[0].append(userid).append('\t')
+								.append(gender(userid)).append('\t')
+								.append(age(userid)).append('\n');
+					}
+				}, pool, window);
+	}
+
+	private void writeTokens(String path, int rows, int salt,
+			final int minTokens, final int maxTokens, ExecutorService pool,
+			int window) throws IOException {
+		write(new String[] { path }, rows, salt, new Lines() {
+			void append(StringBuilder[] out, Random random, long row) {
+				appendFeature(out[0], random, (int) row, minTokens, maxTokens);
+				out[0].append('\n');
+			}
+		}, pool, window);
+	}
+
+	/**
+	 * Generates rows in blocks on the pool and writes the blocks in order.
+	 *
+	 * @param salt
+	 *            Distinguishes the seeds of the files.
+	 * @return the number of bytes written to the first path.
+	 */
+	private long write(String[] paths, final long rows, int salt,
+			final Lines lines, ExecutorService pool, int window)
+			throws IOException {
+		System.err.println("Writing " + rows + " rows to " + paths[0]);
+		long start = System.currentTimeMillis();
+		OutputStream[] outs = new OutputStream[paths.length];
+		ArrayDeque<Future<byte[][]>> pending = new ArrayDeque<Future<byte[][]>>();
+		long blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+		long submitted = 0;
+		long written = 0;
+		long bytes = 0;
+		try {
+			for (int i = 0; i < paths.length; i++)
+				outs[i] = new FileOutputStream(paths[i]);
+			while (written < blocks) {
+				while (submitted < blocks && pending.size() < window) {
+					pending.add(pool.submit(block(lines, paths.length,
+							submitted, rows, salt)));
+					submitted++;
+				}
+				byte[][] chunks = get(pending.poll());
+				for (int i = 0; i < outs.length; i++)
+					outs[i].write(chunks[i]);
+				bytes += chunks[0].length;
+				written++;
+				if (written % 1024 == 0)
+					System.err.println("Wrote " + Math.min(rows, written
+							* BLOCK_ROWS) + " rows, " + (bytes >> 20) + "MB");
+			}
+		} finally {
+			for (Future<byte[][]> future : pending)
+				future.cancel(true);
+			for (OutputStream out : outs) {
+				if (out != null)
+					out.close();
+			}
+		}
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		System.err.println("Wrote " + paths[0] + ": " + (bytes >> 20)
+				+ "MB in " + millis + "ms (" + (bytes / 1024 / millis) + "MB/s)");
+		return bytes;
+	}
+
+	private Callable<byte[][]> block(final Lines lines, final int outputs,
+			final long block, final long rows, final int salt) {
+		return new Callable<byte[][]>() {
+			public byte[][] call() {
+				Random random = new Random(HashUtil.fmix64(seed
+						^ ((long) salt << 48) ^ block));
+				StringBuilder[] out = new StringBuilder[outputs];
+				for (int i = 0; i < outputs; i++)
+					out[i] = new StringBuilder(BLOCK_ROWS * (i == 0 ? 128 : 24));
+				long end = Math.min(rows, (block + 1) * BLOCK_ROWS);
+				for (long row = block * BLOCK_ROWS; row < end; row++)
+					lines.append(out, random, row);
+				byte[][] chunks = new byte[outputs][];
+				for (int i = 0; i < outputs; i++)
+					chunks[i] = out[i].toString().getBytes(LATIN1);
+				return chunks;
+			}
+		};
+	}
+
+	private static byte[][] get(Future<byte[][]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while generating", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot generate a block", e.getCause());
+		}
+	}
+
+	/**
+	 * Appends a line of the original data, with a line break.
+	 */
+	void appendRaw(StringBuilder builder, Random random, boolean hasLabel) {
+		int ad = ads.sample(random);
+		long adHash = HashUtil.hashFeature(ad);
+		int advertiser = (int) ((adHash >>> 1) % numAdvertisers);
+		int query = queries.sample(random);
+		int depth = 1 + random.nextInt(3);
+		int position = 1 + random.nextInt(depth);
+		if (hasLabel) {
+			double ctr = sigmoid(RAW_BIAS + AD_SCALE * effect(adHash)
+					+ QUERY_SCALE * effect(HashUtil.hashFeature(~query))
+					- POSITION * (position - 1));
+			int impressions = 1;
+			while (random.nextDouble() < 0.1)
+				impressions++;
+			int clicks = 0;
+			for (int i = 0; i < impressions; i++) {
+				if (random.nextDouble() < ctr)
+					clicks++;
+			}
+			builder.append(clicks).append('\t');
+			builder.append(impressions).append('\t');
+		}
+		// the display URL is a hash of the advertiser, as in the real data.
+		builder.append(HashUtil.fmix64(advertiser) >>> 1).append('\t');
+		builder.append(ad).append('\t');
+		builder.append(advertiser).append('\t');
+		builder.append(depth).append('\t');
+		builder.append(position).append('\t');
+		builder.append(query).append('\t');
+		// an ad always has the same keyword, title and description.
+		builder.append((int) ((adHash >>> 8) % numKeywords)).append('\t');
+		builder.append((int) ((adHash >>> 16) % numTitles)).append('\t');
+		builder.append((int) ((adHash >>> 24) % numDescriptions)).append('\t');
+		builder.append(users.sample(random)).append('\n');
+	}
+
+	/**
+	 * Appends a line of joined data (without a line break).
+	 *
+	 * @return the click probability of the line.
+	 */
+	double appendInstance(StringBuilder builder, Random random,
+			boolean hasLabel) {
+		int depth = 1 + random.nextInt(3);
+		int position = 1 + random.nextInt(depth);
+		int userid = users.sample(random);
+		int n = 15 + random.nextInt(26);
+		int[] row = new int[n];
+		double wx = 0;
+		for (int i = 0; i < n; i++) {
+			row[i] = tokens.sample(random);
+			wx += effect(HashUtil.hashFeature(row[i]));
+		}
+		double ctr = sigmoid(TOKEN_BIAS + TOKEN_SCALE * wx / Math.sqrt(n)
+				- POSITION * (position - 1));
+		if (hasLabel)
+			builder.append(random.nextDouble() < ctr ? 1 : 0).append('|');
+		builder.append(depth).append('|');
+		builder.append(position).append('|');
+		builder.append(userid).append('|');
+		builder.append(gender(userid)).append('|');
+		builder.append(age(userid)).append('|');
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				builder.append(',');
+			builder.append(row[i]);
+		}
+		return ctr;
+	}
+
+	/**
+	 * Appends a line of a feature file (without a line break): the id, a tab,
+	 * and the tokens separated by '|'.
+	 */
+	void appendFeature(StringBuilder builder, Random random, int id,
+			int minTokens, int maxTokens) {
+		builder.append(id).append('\t');
+		int n = minTokens + random.nextInt(maxTokens - minTokens + 1);
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				builder.append('|');
+			builder.append(tokens.sample(random));
+		}
+	}
+
+	/**
+	 * @return n lines of joined data, e.g. for benchmarks.
+	 */
+	public String[] instanceLines(Random random, int n, boolean hasLabel) {
+		String[] lines = new String[n];
+		StringBuilder builder = new StringBuilder(256);
+		for (int i = 0; i < n; i++) {
+			builder.setLength(0);
+			appendInstance(builder, random, hasLabel);
+			lines[i] = builder.toString();
+		}
+		return lines;
+	}
+
+	/**
+	 * @return n lines of a feature file with ids 0 to n-1, e.g. for
+	 *         benchmarks.
+	 */
+	public String[] featureLines(Random random, int n) {
+		String[] lines = new String[n];
+		StringBuilder builder = new StringBuilder(128);
+		for (int i = 0; i < n; i++) {
+			builder.setLength(0);
+			appendFeature(builder, random, i, 1, 30);
+			lines[i] = builder.toString();
+		}
+		return lines;
+	}
+
+	/* The gender of the user, 0 (unknown), 1 (male) or 2 (female). */
+	private static int gender(int userid) {
+		if (userid == 0)
+			return 0;
+		return (int) ((HashUtil.fmix64(~(long) userid) >>> 1) % 3);
+	}
+
+	/* The age group of the user, 0 (unknown) to 6. */
+	private static int age(int userid) {
+		if (userid == 0)
+			return 0;
+		return (int) ((HashUtil.fmix64(~(long) userid) >>> 8) % 7);
+	}
+
+	/* A hidden weight in [-1, 1) drawn from the hash. */
+	private static double effect(long hash) {
+		return (hash >>> 11) * 0x1.0p-52 - 1.0;
+	}
+
+	private static double sigmoid(double x) {
+		return 1.0 / (1.0 + Math.exp(-x));
+	}
+
+	/**
+	 * Usage: SyntheticData outdir trainRows testRows [raw|joined|both]
+	 * [threads] [seed]
+	 *
+	 * Writes outdir/raw/{train,test}.txt and outdir/features/ (raw), and
+	 * outdir/data/{train,test,test_label}.txt (joined).
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: SyntheticData outdir trainRows testRows"
+					+ " [raw|joined|both] [threads] [seed]");
+			System.exit(1);
+		}
+		String outdir = args[0] + "/";
+		long trainRows = Long.parseLong(args[1]);
+		long testRows = Long.parseLong(args[2]);
+		String schema = args.length > 3 ? args[3] : "both";
+		int nthreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime
+				.getRuntime().availableProcessors();
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+		int window = 2 * nthreads;
+
+		SyntheticData data = new SyntheticData(trainRows, seed);
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try {
+			if (schema.equals("raw") || schema.equals("both")) {
+				new File(outdir + "raw").mkdirs();
+				new File(outdir + "features").mkdirs();
+				data.writeFeatures(outdir + "features/", pool, window);
+				data.writeRaw(outdir + "raw/train.txt", trainRows, true, pool,
+						window);
+				data.writeRaw(outdir + "raw/test.txt", testRows, false, pool,
+						window);
+			}
+			if (schema.equals("joined") || schema.equals("both")) {
+				new File(outdir + "data").mkdirs();
+				data.writeJoined(outdir + "data/train.txt", null, trainRows,
+						true, pool, window);
+				data.writeJoined(outdir + "data/test.txt", outdir
+						+ "data/test_label.txt", testRows, false, pool, window);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package edu.uw.cs.biglearn.clickprediction.preprocess;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+
+/**
+ * A feature table mapping an id to its set of tokens, stored in compressed
+ * sparse row form: the tokens of id are tokens[offsets[id]] to
+ * tokens[offsets[id+1]-1], sorted and without duplicates.
+ *
+ * A table lives either in heap arrays, or in a memory mapped index file
+ * written by write() and opened by map(), in which case it is read in place.
+ *
+ * @author haijieg
+ *
+ */
+public class TokenTable {
+	private int[] offsets;
+	private int[] tokens;
+	private int size;
+
+	// set instead of the arrays for a mapped table.
+	private MappedFile file;
+	private long offsetsPos;
+	private long tokensPos;
+
+	/**
+	 * Creates an empty table, to be filled with addRow().
+	 */
+	public TokenTable() {
+		offsets = new int[1024];
+		tokens = new int[4096];
+	}
+
+	/**
+	 * @return the number of ids in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of tokens of the id.
+	 */
+	public int length(int id) {
+		return offset(id + 1) - offset(id);
+	}
+
+	/**
+	 * @return the k-th token of the id.
+	 */
+	public int token(int id, int k) {
+		return tokenAt(offset(id) + k);
+	}
+
+	private int offset(int id) {
+		return (offsets != null) ? offsets[id] : file.getInt(offsetsPos + 4L
+				* id);
+	}
+
+	private int tokenAt(int i) {
+		return (tokens != null) ? tokens[i] : file.getInt(tokensPos + 4L * i);
+	}
+
+	/**
+	 * Copies the tokens of the id into dst starting at pos.
+	 *
+	 * @return the number of copied tokens.
+	 */
+	public int copyRow(int id, int[] dst, int pos) {
+		int start = offset(id);
+		int n = offset(id + 1) - start;
+		if (tokens != null) {
+			System.arraycopy(tokens, start, dst, pos, n);
+		} else {
+			for (int i = 0; i < n; i++)
+				dst[pos + i] = tokenAt(start + i);
+		}
+		return n;
+	}
+
+	/**
+	 * Appends the tokens of the id, separated by delim, to the builder.
+	 */
+	public void appendRow(StringBuilder builder, int id, char delim) {
+		int start = offset(id);
+		int end = offset(id + 1);
+		for (int i = start; i < end; i++) {
+			if (i > start)
+				builder.append(delim);
+			builder.append(tokenAt(i));
+		}
+	}
+
+	/**
+	 * @return the tokens of the id, separated by delim.
+	 */
+	public String implode(int id, char delim) {
+		StringBuilder builder = new StringBuilder();
+		appendRow(builder, id, delim);
+		return builder.toString();
+	}
+
+	/**
+	 * Adds the next id with the tokens row[0] to row[n-1]. The row is sorted
+	 * and deduplicated in place.
+	 */
+	public void addRow(int[] row, int n) {
+		int unique = sortUnique(row, n);
+		if (size + 2 > offsets.length)
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		int start = offsets[size];
+		if (start + unique > tokens.length)
+			tokens = Arrays.copyOf(tokens,
+					Math.max(start + unique, tokens.length * 2));
+		System.arraycopy(row, 0, tokens, start, unique);
+		offsets[++size] = start + unique;
+	}
+
+	/**
+	 * Sorts row[0] to row[n-1] and moves the unique tokens to the front.
+	 *
+	 * @return the number of unique tokens.
+	 */
+	public static int sortUnique(int[] row, int n) {
+		Arrays.sort(row, 0, n);
+		int unique = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || row[i] != row[i - 1])
+				row[unique++] = row[i];
+		}
+		return unique;
+	}
+
+	/**
+	 * Concatenates the tables, e.g. the tables parsed from consecutive chunks
+	 * of a feature file, into a single table with trimmed arrays.
+	 */
+	public static TokenTable concat(List<TokenTable> parts) {
+		int rows = 0;
+		long ntokens = 0;
+		for (TokenTable part : parts) {
+			rows += part.size;
+			ntokens += part.offsets[part.size];
+		}
+		if (ntokens > Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many tokens: " + ntokens);
+		TokenTable table = new TokenTable();
+		table.offsets = new int[rows + 1];
+		table.tokens = new int[(int) ntokens];
+		int row = 0;
+		int pos = 0;
+		for (TokenTable part : parts) {
+			int n = part.offsets[part.size];
+			System.arraycopy(part.tokens, 0, table.tokens, pos, n);
+			for (int i = 1; i <= part.size; i++)
+				table.offsets[row + i] = pos + part.offsets[i];
+			row += part.size;
+			pos += n;
+		}
+		table.size = rows;
+		return table;
+	}
+
+	/**
+	 * Writes the table as: size (int), number of tokens (int), size + 1
+	 * offsets (int), tokens (int).
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		int ntokens = offset(size);
+		out.writeInt(size);
+		out.writeInt(ntokens);
+		for (int i = 0; i <= size; i++)
+			out.writeInt(offset(i));
+		for (int i = 0; i < ntokens; i++)
+			out.writeInt(tokenAt(i));
+	}
+
+	/**
+	 * Opens a table written by write() at the given position of the mapped
+	 * file, without copying it. The sizes and the first and last offsets are
+	 * checked against the file, the other offsets are not read.
+	 *
+	 * @throws IOException
+	 *             if the table does not fit in the file.
+	 */
+	public static TokenTable map(MappedFile file, long pos) throws IOException {
+		if (pos + 8 > file.length())
+			throw new IOException("Truncated token table at byte " + pos
+					+ " of " + file.path);
+		TokenTable table = new TokenTable(file);
+		table.size = file.getInt(pos);
+		int ntokens = file.getInt(pos + 4);
+		table.offsetsPos = pos + 8;
+		table.tokensPos = table.offsetsPos + 4L * (table.size + 1);
+		if (table.size < 0 || ntokens < 0
+				|| table.tokensPos + 4L * ntokens > file.length())
+			throw new IOException("Truncated token table at byte " + pos
+					+ " of " + file.path);
+		if (table.offset(0) != 0 || table.offset(table.size) != ntokens)
+			throw new IOException("Corrupt token table at byte " + pos
+					+ " of " + file.path);
+		return table;
+	}
+
+	private TokenTable(MappedFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the number of bytes written by write().
+	 */
+	public long byteSize() {
+		return 8 + 4L * (size + 1) + 4L * offset(size);
+	}
+}
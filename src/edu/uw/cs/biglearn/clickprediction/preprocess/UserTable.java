@@ -0,0 +1,106 @@
+package edu.uw.cs.biglearn.clickprediction.preprocess;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import edu.uw.cs.biglearn.clickprediction.util.MappedFile;
+
+/**
+ * The user profile table: gender and age of each user id, stored as two
+ * packed byte columns. Users without a profile have gender 0 and age 0.
+ *
+ * Like TokenTable, the columns are either heap arrays or read in place from a
+ * memory mapped index file.
+ *
+ * @author haijieg
+ *
+ */
+public class UserTable {
+	private final byte[] gender;
+	private final byte[] age;
+	private final int size;
+
+	// set instead of the arrays for a mapped table.
+	private final MappedFile file;
+	private final long genderPos;
+	private final long agePos;
+
+	/**
+	 * Creates a table for user ids in [0, size) without any profile.
+	 */
+	public UserTable(int size) {
+		this.size = size;
+		gender = new byte[size];
+		age = new byte[size];
+		file = null;
+		genderPos = agePos = 0;
+	}
+
+	private UserTable(MappedFile file, long pos) {
+		this.file = file;
+		size = file.getInt(pos);
+		genderPos = pos + 4;
+		agePos = genderPos + size;
+		gender = age = null;
+	}
+
+	/**
+	 * @return the number of user ids in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int gender(int uid) {
+		return (gender != null) ? gender[uid] : file.get(genderPos + uid);
+	}
+
+	public int age(int uid) {
+		return (age != null) ? age[uid] : file.get(agePos + uid);
+	}
+
+	/**
+	 * Sets the profile of the user. Threads may set different users
+	 * concurrently. Mapped tables are read only.
+	 */
+	public void set(int uid, int gender, int age) {
+		this.gender[uid] = (byte) gender;
+		this.age[uid] = (byte) age;
+	}
+
+	/**
+	 * Writes the table as: size (int), gender (size bytes), age (size bytes).
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++)
+			out.writeByte(gender(i));
+		for (int i = 0; i < size; i++)
+			out.writeByte(age(i));
+	}
+
+	/**
+	 * @return the number of bytes written by write().
+	 */
+	public long byteSize() {
+		return 4 + 2L * size;
+	}
+
+	/**
+	 * Opens a table written by write() at the given position of the mapped
+	 * file, without copying it.
+	 *
+	 * @throws IOException
+	 *             if the table does not fit in the file.
+	 */
+	public static UserTable map(MappedFile file, long pos) throws IOException {
+		if (pos + 4 > file.length())
+			throw new IOException("Truncated user table at byte " + pos
+					+ " of " + file.path);
+		int size = file.getInt(pos);
+		if (size < 0 || pos + 4 + 2L * size > file.length())
+			throw new IOException("Truncated user table at byte " + pos
+					+ " of " + file.path);
+		return new UserTable(file, pos);
+	}
+}
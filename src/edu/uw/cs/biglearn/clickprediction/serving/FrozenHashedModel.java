@@ -0,0 +1,101 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+import edu.uw.cs.biglearn.clickprediction.util.HashUtil;
+
+/**
+ * A frozen LogisticRegressionWithHashing model: the tokens of a request are
+ * hashed exactly as HashedDataInstance does, and looked up in the dense
+ * hashed weight vector.
+ *
+ * The body of its snapshot is the dimension (int), padding to a multiple of 8
+ * bytes, and the weights (double). Bit 0 of the flags is set for a
+ * personalized model.
+ *
+ * @author haijieg
+ *
+ */
+public class FrozenHashedModel extends FrozenModel {
+	private final DoubleBuffer weights;
+	private final int dim;
+	private final boolean personal;
+
+	/**
+	 * @param weights
+	 *            The hashed feature weights, the feature dimension is their
+	 *            number.
+	 * @param personal
+	 *            True if the model was trained with personalized features.
+	 */
+	public FrozenHashedModel(double w0, double wDepth, double wPosition,
+			double wAge, double wGender, DoubleBuffer weights, boolean personal) {
+		super(w0, wDepth, wPosition, wAge, wGender);
+		this.weights = weights;
+		this.dim = weights.limit();
+		this.personal = personal;
+	}
+
+	public int dim() {
+		return dim;
+	}
+
+	public boolean isPersonal() {
+		return personal;
+	}
+
+	/**
+	 * @return the weight of hashed feature i.
+	 */
+	public double weightAt(int i) {
+		return weights.get(i);
+	}
+
+	private double weight(long hash) {
+		return HashUtil.hashToSign(hash)
+				* weights.get(HashUtil.hashToRange(hash, dim));
+	}
+
+	@Override
+	protected int kind() {
+		return HASHED;
+	}
+
+	@Override
+	protected int flags() {
+		return personal ? 1 : 0;
+	}
+
+	@Override
+	protected void writeBody(DataOutputStream out) throws IOException {
+		out.writeInt(dim);
+		for (int i = HEADER_SIZE + 4; i < align8(HEADER_SIZE + 4); i++)
+			out.writeByte(0);
+		for (int i = 0; i < dim; i++)
+			out.writeDouble(weights.get(i));
+	}
+
+	static FrozenHashedModel open(double w0, double wDepth, double wPosition,
+			double wAge, double wGender, int flags, ByteBuffer buf) {
+		int dim = buf.getInt(HEADER_SIZE);
+		return new FrozenHashedModel(w0, wDepth, wPosition, wAge, wGender,
+				slice(buf, align8(HEADER_SIZE + 4), 8L * dim).asDoubleBuffer(),
+				(flags & 1) != 0);
+	}
+
+	@Override
+	protected double tokenProduct(int userid, int[] tokens, int numTokens) {
+		double wx = 0;
+		for (int i = 0; i < numTokens; i++)
+			wx += weight(HashUtil.hashFeature(tokens[i]));
+		if (personal) {
+			wx += weight(HashUtil.hashFeature(userid, HashUtil.INTERCEPT));
+			for (int i = 0; i < numTokens; i++)
+				wx += weight(HashUtil.hashFeature(userid, tokens[i]));
+		}
+		return wx;
+	}
+}
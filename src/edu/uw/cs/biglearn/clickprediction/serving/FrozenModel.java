@@ -0,0 +1,218 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.uw.cs.biglearn.clickprediction.util.FastMath;
+
+/**
+ * An immutable logistic regression model for serving, created by freezing
+ * the Weights of a trained model. A frozen model is never modified, so any
+ * number of threads can score with it without locking.
+ *
+ * A model is saved as a binary snapshot: a header of magic (int), version
+ * (int), kind (int), flags (int) and the intercept, depth, position, age and
+ * gender weights (double), followed by the body of the kind (see the
+ * subclasses). Arrays of doubles start at a multiple of 8 bytes, so that
+ * map() can view them in place.
+ *
+ * @author haijieg
+ *
+ */
+public abstract class FrozenModel {
+	static final int MAGIC = 0x4354524d; // "CTRM"
+	static final int VERSION = 1;
+	static final int TOKEN = 1;
+	static final int HASHED = 2;
+	static final int HEADER_SIZE = 56;
+
+	final double w0;
+	final double wDepth;
+	final double wPosition;
+	final double wAge;
+	final double wGender;
+
+	protected FrozenModel(double w0, double wDepth, double wPosition,
+			double wAge, double wGender) {
+		this.w0 = w0;
+		this.wDepth = wDepth;
+		this.wPosition = wPosition;
+		this.wAge = wAge;
+		this.wGender = wGender;
+	}
+
+	public double w0() {
+		return w0;
+	}
+
+	public double wDepth() {
+		return wDepth;
+	}
+
+	public double wPosition() {
+		return wPosition;
+	}
+
+	public double wAge() {
+		return wAge;
+	}
+
+	public double wGender() {
+		return wGender;
+	}
+
+	/**
+	 * @return the sum of the weights of the tokens of the user.
+	 */
+	protected abstract double tokenProduct(int userid, int[] tokens,
+			int numTokens);
+
+	/**
+	 * @return the predicted CTR of the request.
+	 */
+	public double predict(ScoreRequest request) {
+		double wx = w0 + wAge * request.age + wGender * request.gender
+				+ wDepth * request.depth + wPosition * request.position
+				+ tokenProduct(request.userid, request.tokens, request.numTokens);
+		return FastMath.sigmoid(wx);
+	}
+
+	protected abstract int kind();
+
+	protected abstract int flags();
+
+	/**
+	 * Writes the body of the snapshot, which starts at HEADER_SIZE.
+	 */
+	protected abstract void writeBody(DataOutputStream out) throws IOException;
+
+	/**
+	 * Saves the model as a binary snapshot. The file is written under a
+	 * temporary name and renamed, so readers never see a partial snapshot.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(String path) throws IOException {
+		File tmp = new File(path + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(kind());
+			out.writeInt(flags());
+			out.writeDouble(w0);
+			out.writeDouble(wDepth);
+			out.writeDouble(wPosition);
+			out.writeDouble(wAge);
+			out.writeDouble(wGender);
+			writeBody(out);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(path)))
+			throw new IOException("Cannot rename " + tmp + " to " + path);
+	}
+
+	/**
+	 * Reads a snapshot written by save() into the heap.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public static FrozenModel load(String path) throws IOException {
+		File file = new File(path);
+		if (file.length() > Integer.MAX_VALUE)
+			throw new IOException("Snapshot too large to load, map it: " + path);
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return open(ByteBuffer.wrap(bytes), path);
+	}
+
+	/**
+	 * Opens a snapshot written by save() in place from a read-only memory
+	 * mapping, so loading takes constant time whatever the model size, and
+	 * servers on one host share the pages of the model.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public static FrozenModel map(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Snapshot larger than 2GB: " + path);
+			return open(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()), path);
+		} finally {
+			// the mapping stays valid after the channel is closed.
+			file.close();
+		}
+	}
+
+	private static FrozenModel open(ByteBuffer buf, String path)
+			throws IOException {
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC)
+			throw new IOException("Not a model snapshot: " + path);
+		int version = buf.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version
+					+ ": " + path);
+		int kind = buf.getInt(8);
+		int flags = buf.getInt(12);
+		double w0 = buf.getDouble(16);
+		double wDepth = buf.getDouble(24);
+		double wPosition = buf.getDouble(32);
+		double wAge = buf.getDouble(40);
+		double wGender = buf.getDouble(48);
+		try {
+			switch (kind) {
+			case TOKEN:
+				return FrozenTokenModel.open(w0, wDepth, wPosition, wAge,
+						wGender, buf);
+			case HASHED:
+				return FrozenHashedModel.open(w0, wDepth, wPosition, wAge,
+						wGender, flags, buf);
+			default:
+				throw new IOException("Unknown model kind " + kind + ": "
+						+ path);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated snapshot: " + path, e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Truncated snapshot: " + path, e);
+		}
+	}
+
+	/**
+	 * @return a view of buf[start, start + length).
+	 */
+	static ByteBuffer slice(ByteBuffer buf, int start, long length) {
+		ByteBuffer view = buf.duplicate();
+		view.position(start);
+		view.limit((int) (start + length));
+		return view.slice();
+	}
+
+	/**
+	 * @return pos rounded up to a multiple of 8.
+	 */
+	static int align8(int pos) {
+		return (pos + 7) & ~7;
+	}
+}
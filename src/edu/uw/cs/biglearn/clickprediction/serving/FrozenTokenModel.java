@@ -0,0 +1,118 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A frozen LogisticRegression model: the token weights are a sorted array of
+ * token ids and a parallel array of weights, looked up by binary search.
+ * Tokens that are not in the model have weight 0.
+ *
+ * The body of its snapshot is the number of tokens n (int), the n sorted
+ * token ids (int), padding to a multiple of 8 bytes, and the n weights
+ * (double).
+ *
+ * @author haijieg
+ *
+ */
+public class FrozenTokenModel extends FrozenModel {
+	private final IntBuffer keys;
+	private final DoubleBuffer values;
+
+	/**
+	 * @param keys
+	 *            The token ids, sorted in increasing order.
+	 * @param values
+	 *            values.get(i) is the weight of keys.get(i).
+	 */
+	public FrozenTokenModel(double w0, double wDepth, double wPosition,
+			double wAge, double wGender, IntBuffer keys, DoubleBuffer values) {
+		super(w0, wDepth, wPosition, wAge, wGender);
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * @return the number of tokens with a weight.
+	 */
+	public int size() {
+		return keys.limit();
+	}
+
+	/**
+	 * @return the i-th token id, in increasing order.
+	 */
+	public int key(int i) {
+		return keys.get(i);
+	}
+
+	/**
+	 * @return the weight of key(i).
+	 */
+	public double value(int i) {
+		return values.get(i);
+	}
+
+	/**
+	 * @return the weight of the token, 0 if it is not in the model.
+	 */
+	public double weight(int token) {
+		int lo = 0;
+		int hi = keys.limit() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int key = keys.get(mid);
+			if (key < token)
+				lo = mid + 1;
+			else if (key > token)
+				hi = mid - 1;
+			else
+				return values.get(mid);
+		}
+		return 0.0;
+	}
+
+	@Override
+	protected int kind() {
+		return TOKEN;
+	}
+
+	@Override
+	protected int flags() {
+		return 0;
+	}
+
+	@Override
+	protected void writeBody(DataOutputStream out) throws IOException {
+		int n = size();
+		out.writeInt(n);
+		for (int i = 0; i < n; i++)
+			out.writeInt(keys.get(i));
+		int end = HEADER_SIZE + 4 + 4 * n;
+		for (int i = end; i < align8(end); i++)
+			out.writeByte(0);
+		for (int i = 0; i < n; i++)
+			out.writeDouble(values.get(i));
+	}
+
+	static FrozenTokenModel open(double w0, double wDepth, double wPosition,
+			double wAge, double wGender, ByteBuffer buf) {
+		int n = buf.getInt(HEADER_SIZE);
+		int keysStart = HEADER_SIZE + 4;
+		int valuesStart = align8(keysStart + 4 * n);
+		return new FrozenTokenModel(w0, wDepth, wPosition, wAge, wGender,
+				slice(buf, keysStart, 4L * n).asIntBuffer(), slice(buf,
+						valuesStart, 8L * n).asDoubleBuffer());
+	}
+
+	@Override
+	protected double tokenProduct(int userid, int[] tokens, int numTokens) {
+		double wx = 0;
+		for (int i = 0; i < numTokens; i++)
+			wx += weight(tokens[i]);
+		return wx;
+	}
+}
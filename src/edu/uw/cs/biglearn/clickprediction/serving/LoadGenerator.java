@@ -0,0 +1,174 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A closed loop load generator for ScoringServer. Each connection sends a
+ * batch of pipelined requests, waits for all the responses, and sends the
+ * next batch. Request lines are replayed from a testing data file. The
+ * latency of a request is the round trip time of its batch.
+ *
+ * A batch is written in slices of SLICE requests while its responses are
+ * read, with at most WINDOW requests unanswered. Otherwise a large batch
+ * would fill the socket buffers both ways and both ends would block writing.
+ * The responses to WINDOW requests (about 20 bytes each) fit in a default
+ * socket receive buffer, so the server never blocks on them.
+ *
+ * Usage: LoadGenerator host port requestfile connections batch requests
+ *
+ * @author haijieg
+ *
+ */
+public class LoadGenerator {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	static final int SLICE = 512; // requests written at once
+	static final int WINDOW = 4 * SLICE; // unanswered requests per connection
+
+	private final String host;
+	private final int port;
+	private final String[] requests;
+
+	public LoadGenerator(String host, int port, String[] requests) {
+		this.host = host;
+		this.port = port;
+		this.requests = requests;
+	}
+
+	/**
+	 * Reads up to max request lines from a testing data file.
+	 */
+	public static String[] readRequests(String path, int max)
+			throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while (lines.size() < max && (line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Sends requests on one connection.
+	 *
+	 * @return the latency in nanoseconds of each batch.
+	 */
+	long[] runConnection(int id, int batch, int nbatches) throws IOException {
+		Socket socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), LATIN1), 1 << 16);
+			long[] latencies = new long[nbatches];
+			StringBuilder builder = new StringBuilder();
+			int[] ends = new int[batch + 1]; // request i is [ends[i], ends[i+1])
+			int next = (id * batch) % requests.length;
+			for (int b = 0; b < nbatches; b++) {
+				builder.setLength(0);
+				for (int i = 0; i < batch; i++) {
+					builder.append(requests[next]).append('\n');
+					ends[i + 1] = builder.length();
+					next = (next + 1) % requests.length;
+				}
+				byte[] bytes = builder.toString().getBytes(LATIN1);
+				long start = System.nanoTime();
+				int sent = 0;
+				for (int i = 0; i < batch; i++) {
+					while (sent < batch && sent - i <= WINDOW - SLICE) {
+						int n = Math.min(SLICE, batch - sent);
+						out.write(bytes, ends[sent], ends[sent + n] - ends[sent]);
+						out.flush();
+						sent += n;
+					}
+					String response = in.readLine();
+					if (response == null)
+						throw new IOException("Connection closed by the server");
+					if (response.startsWith("error"))
+						System.err.println("Warning: " + response);
+				}
+				latencies[b] = System.nanoTime() - start;
+			}
+			return latencies;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Runs the given number of requests over concurrent connections and
+	 * prints the throughput and the latency percentiles.
+	 */
+	public void run(int connections, final int batch, int total)
+			throws Exception {
+		final int nbatches = Math.max(1, total / (connections * batch));
+		ExecutorService pool = Executors.newFixedThreadPool(connections);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long start = System.nanoTime();
+		try {
+			for (int c = 0; c < connections; c++) {
+				final int id = c;
+				results.add(pool.submit(new Callable<long[]>() {
+					public long[] call() throws IOException {
+						return runConnection(id, batch, nbatches);
+					}
+				}));
+			}
+			long[] latencies = new long[connections * nbatches];
+			int n = 0;
+			for (Future<long[]> result : results) {
+				long[] part = result.get();
+				System.arraycopy(part, 0, latencies, n, part.length);
+				n += part.length;
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			Arrays.sort(latencies);
+			System.out.println("connections = " + connections + ", batch = "
+					+ batch + ", requests = " + (long) n * batch);
+			System.out.println("throughput: " + (long) (n * batch / seconds)
+					+ " requests/s");
+			System.out.println("batch latency (us): p50 "
+					+ percentile(latencies, 0.5) + ", p99 "
+					+ percentile(latencies, 0.99) + ", p99.9 "
+					+ percentile(latencies, 0.999) + ", max "
+					+ latencies[latencies.length - 1] / 1000);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, i)] / 1000;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = (args.length > 0) ? args[0] : "localhost";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9090;
+		String path = (args.length > 2) ? args[2] : "data/test.txt";
+		int connections = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+		int batch = (args.length > 4) ? Integer.parseInt(args[4]) : 1;
+		int total = (args.length > 5) ? Integer.parseInt(args[5]) : 200000;
+		LoadGenerator generator = new LoadGenerator(host, port,
+				readRequests(path, 100000));
+		// warm up the server and the client before measuring.
+		generator.run(connections, batch, total / 10);
+		generator.run(connections, batch, total);
+	}
+}
@@ -0,0 +1,51 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+/**
+ * Holds the newest published model. A trainer publishes immutable snapshots
+ * of its weights while it keeps training, and scoring threads pick up the
+ * newest one with a single volatile read: readers take no lock, and a
+ * publish never waits for them, they finish scoring with the snapshot they
+ * already hold. Publishes are serialized by a lock, so concurrent publishers
+ * count every version.
+ *
+ * @author haijieg
+ *
+ */
+public class ModelRegistry {
+	private volatile FrozenModel current;
+	private volatile long version;
+
+	/**
+	 * Creates an empty registry, current() is null until the first publish.
+	 */
+	public ModelRegistry() {
+	}
+
+	public ModelRegistry(FrozenModel model) {
+		publish(model);
+	}
+
+	/**
+	 * @return the newest published model.
+	 */
+	public FrozenModel current() {
+		return current;
+	}
+
+	/**
+	 * @return the number of published models.
+	 */
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * Makes the model the current one.
+	 *
+	 * @param model
+	 */
+	public synchronized void publish(FrozenModel model) {
+		current = model;
+		version++;
+	}
+}
@@ -0,0 +1,74 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import java.util.Arrays;
+
+import edu.uw.cs.biglearn.clickprediction.util.ParseUtil;
+
+/**
+ * The raw features of an ad impression to score. A request is written as a
+ * line in the format of the testing data:
+ * depth|position|userid|gender|age|token,token,... with the gender in {0, 1,
+ * 2}, so a testing file can be replayed against the server as is.
+ *
+ * A request is reusable: parse() refills it and its token buffer.
+ *
+ * @author haijieg
+ *
+ */
+public class ScoreRequest {
+	int depth;
+	int position;
+	int userid;
+	int gender; // -1 for male, 1 for female, 0 unknown
+	int age;
+	int[] tokens = new int[16];
+	int numTokens;
+
+	private final int[] parsePos = new int[1];
+
+	/**
+	 * Fills this request from a request line.
+	 *
+	 * @param line
+	 * @throws IllegalArgumentException
+	 *             if the line is malformed.
+	 */
+	public void parse(String line) {
+		parsePos[0] = 0;
+		depth = parseInt(line, '|');
+		position = parseInt(line, '|');
+		userid = parseInt(line, '|');
+		gender = parseInt(line, '|');
+		if (gender != 0) gender = (gender == 1) ? -1 : 1; // map gender from {1,2} to {-1, 1}
+		age = parseInt(line, '|');
+		numTokens = 0;
+		while (parsePos[0] < line.length()) {
+			if (numTokens == tokens.length)
+				tokens = Arrays.copyOf(tokens, numTokens * 2);
+			tokens[numTokens++] = parseInt(line, ',');
+		}
+	}
+
+	/**
+	 * Parses the integer at parsePos and moves parsePos past the separator
+	 * following it.
+	 *
+	 * @param line
+	 * @param separator
+	 *            The only separator allowed after the field, besides the end
+	 *            of the line.
+	 */
+	private int parseInt(String line, char separator) {
+		int value;
+		try {
+			value = ParseUtil.parseInt(line, parsePos);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed request: " + line);
+		}
+		int i = parsePos[0];
+		if (i < line.length() && line.charAt(i) != separator)
+			throw new IllegalArgumentException("Malformed request: " + line);
+		parsePos[0] = i + 1;
+		return value;
+	}
+}
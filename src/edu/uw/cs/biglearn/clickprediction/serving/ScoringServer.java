@@ -0,0 +1,181 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A CTR scoring server speaking a plain line protocol over TCP: each request
+ * line (see ScoreRequest) is answered by one line holding the predicted CTR,
+ * or "error <message>" for a malformed request. Responses are in request
+ * order.
+ *
+ * Clients may pipeline requests. The server scores every request already
+ * received on the connection before it writes, and writes all their
+ * responses at once, so a batch of pipelined requests costs one read and one
+ * write.
+ *
+ * Each connection is served by one thread of a fixed pool. The model is read
+ * from a ModelRegistry once per batch, so a newly published model is used
+ * from the next batch on.
+ *
+ * @author haijieg
+ *
+ */
+public class ScoringServer {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final ServerSocket socket;
+	private final ExecutorService handlers;
+	private final ModelRegistry registry;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a server for the model, listening on the given port.
+	 *
+	 * @param model
+	 * @param port
+	 *            The port, 0 for any free port.
+	 * @param nthreads
+	 *            The maximum number of connections served at once.
+	 * @throws IOException
+	 */
+	public ScoringServer(FrozenModel model, int port, int nthreads)
+			throws IOException {
+		this(new ModelRegistry(model), port, nthreads);
+	}
+
+	/**
+	 * Creates a server scoring with the current model of the registry, e.g.
+	 * one a trainer keeps publishing to.
+	 *
+	 * @param registry
+	 * @param port
+	 *            The port, 0 for any free port.
+	 * @param nthreads
+	 *            The maximum number of connections served at once.
+	 * @throws IOException
+	 */
+	public ScoringServer(ModelRegistry registry, int port, int nthreads)
+			throws IOException {
+		this.registry = registry;
+		this.socket = new ServerSocket(port);
+		this.handlers = Executors.newFixedThreadPool(nthreads);
+	}
+
+	/**
+	 * @return the port the server listens on.
+	 */
+	public int port() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Replaces the model. Requests that are being scored finish with the old
+	 * model.
+	 */
+	public void setModel(FrozenModel model) {
+		registry.publish(model);
+	}
+
+	/**
+	 * Accepts connections on a background thread until close().
+	 */
+	public void start() {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (!closed) {
+					try {
+						final Socket connection = socket.accept();
+						connection.setTcpNoDelay(true);
+						handlers.execute(new Runnable() {
+							public void run() {
+								serve(connection);
+							}
+						});
+					} catch (IOException e) {
+						if (!closed)
+							System.err.println("Warning: accept failed: " + e);
+					}
+				}
+			}
+		}, "scoring-acceptor");
+		acceptor.start();
+		System.err.println("Scoring on port " + port());
+	}
+
+	private void serve(Socket connection) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					connection.getInputStream(), LATIN1), 1 << 16);
+			OutputStream out = connection.getOutputStream();
+			ScoreRequest request = new ScoreRequest();
+			StringBuilder responses = new StringBuilder();
+			String line;
+			while ((line = in.readLine()) != null) {
+				FrozenModel current = registry.current(); // one model per batch
+				while (true) {
+					try {
+						request.parse(line);
+						if (current == null)
+							responses.append("error no model");
+						else
+							responses.append(current.predict(request));
+					} catch (IllegalArgumentException e) {
+						responses.append("error ").append(e.getMessage());
+					}
+					responses.append('\n');
+					// score the requests that are already here, then flush.
+					if (!in.ready() || (line = in.readLine()) == null)
+						break;
+				}
+				out.write(responses.toString().getBytes(LATIN1));
+				out.flush();
+				responses.setLength(0);
+			}
+		} catch (SocketException e) {
+			// the client went away.
+		} catch (IOException e) {
+			System.err.println("Warning: connection failed: " + e);
+		} finally {
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Open connections are served until the
+	 * clients close them.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+		handlers.shutdown();
+	}
+
+	/**
+	 * Serves a model snapshot, e.g. one saved by SweepRunner.
+	 * Usage: ScoringServer model [port]
+	 */
+	public static void main(String[] args) throws IOException {
+		String path = (args.length > 0) ? args[0]
+				: "experiments/lrpersonal/model_12289";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9090;
+		long start = System.nanoTime();
+		FrozenModel model = FrozenModel.map(path);
+		System.err.println("Mapped " + path + " in "
+				+ (System.nanoTime() - start) / 1000 + "us");
+		ScoringServer server = new ScoringServer(model, port, Runtime
+				.getRuntime().availableProcessors() * 4);
+		server.start();
+	}
+}
@@ -0,0 +1,221 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a BGZF file (the blocked gzip written by bgzip) in parallel.
+ * A BGZF file is a series of gzip members of at most 64KB, each giving its
+ * compressed size in a BC extra field, so the blocks can be cut from the
+ * input without inflating them. The calling thread only reads and cuts the
+ * compressed blocks; a pool inflates at most window blocks ahead, and the
+ * blocks are returned in order.
+ *
+ * @author haijieg
+ *
+ */
+public class BgzfInputStream extends InputStream {
+	private static final int FEXTRA = 4;
+
+	private final InputStream in;
+	private final ExecutorService pool;
+	private final int window;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final byte[] header = new byte[12];
+	private boolean eof; // no more blocks in the input
+	private byte[] current = new byte[0];
+	private int pos;
+
+	/**
+	 * @param in
+	 *            The compressed input, positioned at the start of a block.
+	 * @param pool
+	 *            The workers inflating the blocks.
+	 * @param window
+	 *            The maximum number of blocks in flight.
+	 */
+	public BgzfInputStream(InputStream in, ExecutorService pool, int window) {
+		this.in = in;
+		this.pool = pool;
+		this.window = window;
+	}
+
+	/**
+	 * @return true if the 16 bytes start a BGZF block.
+	 */
+	static boolean isBgzf(byte[] magic, int length) {
+		return length >= 16 && (magic[0] & 0xff) == 0x1f
+				&& (magic[1] & 0xff) == 0x8b && magic[2] == 8
+				&& (magic[3] & FEXTRA) != 0 && magic[12] == 'B'
+				&& magic[13] == 'C' && magic[14] == 2 && magic[15] == 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureData())
+			return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureData())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current.length - pos;
+	}
+
+	/**
+	 * Moves to the next non empty inflated block if the current one is
+	 * consumed.
+	 *
+	 * @return false at the end of the input.
+	 */
+	private boolean ensureData() throws IOException {
+		while (pos == current.length) {
+			while (!eof && pending.size() < window) {
+				byte[] block = readBlock();
+				if (block == null)
+					eof = true;
+				else
+					pending.add(pool.submit(inflate(block)));
+			}
+			if (pending.isEmpty())
+				return false;
+			current = get(pending.poll());
+			pos = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the compressed block after the fixed part of the header.
+	 *
+	 * @return the extra fields, deflated data, CRC and size of the block, or
+	 *         null at the end of the input.
+	 */
+	private byte[] readBlock() throws IOException {
+		int n = readFully(header, 0, header.length);
+		if (n == 0)
+			return null;
+		if (n < header.length)
+			throw new EOFException("Truncated BGZF block header");
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b
+				|| header[2] != 8 || (header[3] & FEXTRA) == 0)
+			throw new IOException("Not a BGZF block");
+		int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+		byte[] extra = new byte[xlen];
+		if (readFully(extra, 0, xlen) < xlen)
+			throw new EOFException("Truncated BGZF block header");
+		int bsize = -1;
+		for (int i = 0; i < xlen;) {
+			// a subfield is a 2 byte id, a 2 byte length and its data.
+			if (i + 4 > xlen)
+				throw new IOException("Malformed BGZF extra field");
+			int slen = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+			if (i + 4 + slen > xlen)
+				throw new IOException("Malformed BGZF extra field");
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2)
+				bsize = (extra[i + 4] & 0xff) | (extra[i + 5] & 0xff) << 8;
+			i += 4 + slen;
+		}
+		if (bsize < 0)
+			throw new IOException("Gzip member without a BGZF block size");
+		int remaining = bsize + 1 - header.length - xlen;
+		if (remaining < 8)
+			throw new IOException("Bad BGZF block size " + bsize);
+		byte[] block = new byte[remaining];
+		if (readFully(block, 0, remaining) < remaining)
+			throw new EOFException("Truncated BGZF block");
+		return block;
+	}
+
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			int read = in.read(b, off + n, len - n);
+			if (read < 0)
+				break;
+			n += read;
+		}
+		return n;
+	}
+
+	private static Callable<byte[]> inflate(final byte[] block) {
+		return new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				int n = block.length;
+				int crc = le32(block, n - 8);
+				int size = le32(block, n - 4);
+				byte[] data = new byte[size];
+				Inflater inflater = new Inflater(true);
+				try {
+					inflater.setInput(block, 0, n - 8);
+					int off = 0;
+					while (off < size && !inflater.finished()) {
+						int inflated = inflater.inflate(data, off, size - off);
+						if (inflated == 0 && inflater.needsInput())
+							break;
+						off += inflated;
+					}
+					if (off != size)
+						throw new IOException("Corrupt BGZF block");
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt BGZF block", e);
+				} finally {
+					inflater.end();
+				}
+				CRC32 check = new CRC32();
+				check.update(data, 0, size);
+				if ((int) check.getValue() != crc)
+					throw new IOException("BGZF block CRC mismatch");
+				return data;
+			}
+		};
+	}
+
+	private static int le32(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+				| (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+	}
+
+	private static byte[] get(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while inflating", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Cannot inflate a BGZF block", e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<byte[]> future : pending)
+			future.cancel(true);
+		pending.clear();
+		eof = true;
+		in.close();
+	}
+}
@@ -0,0 +1,74 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a stream of text lines as chunks of whole lines, so that the chunks
+ * can be parsed independently by different threads. Each chunk is a fresh
+ * array and ends with a '\n', except possibly the last one of the stream.
+ *
+ * @author haijieg
+ *
+ */
+public class ChunkReader {
+	private final InputStream in;
+	private final int chunkSize;
+	private byte[] carry = new byte[0]; // the partial line after the last chunk
+	private int carryLength;
+	private boolean eof;
+
+	/**
+	 * @param in
+	 *            The stream to read.
+	 * @param chunkSize
+	 *            The target number of bytes per chunk. A chunk is longer only
+	 *            when a single line does not fit.
+	 */
+	public ChunkReader(InputStream in, int chunkSize) {
+		this.in = in;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the next chunk of whole lines, or null at the end of the
+	 *         stream.
+	 * @throws IOException
+	 */
+	public byte[] next() throws IOException {
+		if (eof && carryLength == 0)
+			return null;
+		byte[] buf = Arrays.copyOf(carry, Math.max(chunkSize, carryLength * 2));
+		int length = carryLength;
+		int searched = 0;
+		while (true) {
+			while (!eof && length < buf.length) {
+				int n = in.read(buf, length, buf.length - length);
+				if (n < 0)
+					eof = true;
+				else
+					length += n;
+			}
+			if (length == 0)
+				return null;
+			int end = length;
+			while (end > searched && buf[end - 1] != '\n')
+				end--;
+			if (end > searched || eof) {
+				if (end == searched)
+					end = length; // the last line has no '\n'.
+				carryLength = length - end;
+				carry = Arrays.copyOfRange(buf, end, length);
+				return (end == buf.length) ? buf : Arrays.copyOf(buf, end);
+			}
+			// a single line longer than the buffer.
+			searched = length;
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,141 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A fixed capacity open addressing table from int keys to a double weight and
+ * an int timestamp that many threads can update without locks. Keys are
+ * claimed with a compare-and-set, weights and timestamps are plain array
+ * elements: concurrent updates of the same weight may be lost, which is the
+ * Hogwild assumption for sparse SGD.
+ *
+ * The table does not grow, insert() fails once it holds maxKeys keys. It has
+ * at least twice as many slots as keys, so a probe always ends at the key or
+ * at an empty slot.
+ *
+ * @author haijieg
+ *
+ */
+public class ConcurrentWeightTable {
+	private static final int EMPTY = Integer.MIN_VALUE; // reserved key
+
+	private final AtomicIntegerArray keys;
+	private final double[] weights;
+	private final int[] stamps;
+	private final int mask;
+	private final int maxKeys;
+	private final AtomicInteger size = new AtomicInteger(); // claimed keys
+
+	/**
+	 * @param maxKeys
+	 *            the maximum number of keys the table can hold.
+	 */
+	public ConcurrentWeightTable(int maxKeys) {
+		int capacity = Integer.highestOneBit(Math.max(16, 2 * maxKeys) - 1) << 1;
+		keys = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			keys.set(i, EMPTY);
+		weights = new double[capacity];
+		stamps = new int[capacity];
+		Arrays.fill(stamps, WeightTable.NEVER);
+		mask = capacity - 1;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * @return the slot of the key, or -1 if the key is not in the table.
+	 */
+	public int find(int key) {
+		int slot = HashUtil.fmix32(key) & mask;
+		for (int probes = 0; probes <= mask; probes++) {
+			int k = keys.get(slot);
+			if (k == key)
+				return slot;
+			if (k == EMPTY)
+				return -1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot of the key, claiming a slot with weight 0 and timestamp
+	 * NEVER if it is not in the table yet.
+	 *
+	 * @throws IllegalStateException
+	 *             if the key is new and the table already holds maxKeys keys.
+	 */
+	public int insert(int key) {
+		if (key == EMPTY)
+			throw new IllegalArgumentException("Reserved key " + key);
+		int slot = HashUtil.fmix32(key) & mask;
+		while (true) {
+			int k = keys.get(slot);
+			if (k == key)
+				return slot;
+			if (k == EMPTY) {
+				// reserve the key in the count before claiming the slot, so
+				// racing inserts never claim more than maxKeys slots.
+				if (size.incrementAndGet() > maxKeys) {
+					size.decrementAndGet();
+					throw new IllegalStateException(
+							"ConcurrentWeightTable is full: " + maxKeys
+									+ " keys");
+				}
+				if (keys.compareAndSet(slot, EMPTY, key))
+					return slot;
+				size.decrementAndGet();
+				if (keys.get(slot) == key)
+					return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return the number of keys in the table.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public double get(int key) {
+		int slot = find(key);
+		return slot < 0 ? 0.0 : weights[slot];
+	}
+
+	public double weight(int slot) {
+		return weights[slot];
+	}
+
+	public void setWeight(int slot, double w) {
+		weights[slot] = w;
+	}
+
+	public int stamp(int slot) {
+		return stamps[slot];
+	}
+
+	public void setStamp(int slot, int stamp) {
+		stamps[slot] = stamp;
+	}
+
+	/**
+	 * Copies the entries into a single threaded table. Must be called after
+	 * all the writers are done.
+	 */
+	public WeightTable toWeightTable() {
+		WeightTable table = new WeightTable(size.get());
+		for (int i = 0; i <= mask; i++) {
+			int key = keys.get(i);
+			if (key == EMPTY)
+				continue;
+			int slot = table.insert(key);
+			table.setWeight(slot, weights[i]);
+			table.setStamp(slot, stamps[i]);
+		}
+		return table;
+	}
+}
@@ -1,9 +1,14 @@
 package edu.uw.cs.biglearn.clickprediction.util;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Scanner;
 
 public class EvalUtil {
 	/**
@@ -17,16 +22,19 @@ public class EvalUtil {
 	 */
 	public static double eval(String pathToSol, ArrayList<Double> ctr_prediction) {
 		try {
-			Scanner sc = new Scanner(new BufferedReader(new FileReader(
-					pathToSol)));
-			int size = ctr_prediction.size();
-			double wmse = 0.0;
-			for (int i = 0; i < size; i++) {
-				double ctr = Double.parseDouble(sc.nextLine());
-				wmse += Math.pow((ctr - ctr_prediction.get(i)), 2);
+			BufferedReader reader = open(pathToSol);
+			try {
+				int size = ctr_prediction.size();
+				double wmse = 0.0;
+				for (int i = 0; i < size; i++) {
+					double ctr = Double.parseDouble(nextLine(reader, pathToSol));
+					wmse += Math.pow((ctr - ctr_prediction.get(i)), 2);
+				}
+				wmse /= size;
+				return Math.sqrt(wmse);
+			} finally {
+				reader.close();
 			}
-			wmse /= size;
-			return Math.sqrt(wmse);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return Double.MAX_VALUE;
@@ -45,34 +53,24 @@ public class EvalUtil {
 	public static double eval(String pathToSol, String pathToPrediction) {
 		ArrayList<Double> ctr_prediction = new ArrayList<Double>();
 		try {
-			Scanner sc = new Scanner(new BufferedReader(new FileReader(pathToPrediction)));
-			while (sc.hasNextLine()) {
-				try {
-					ctr_prediction.add(Double.parseDouble(sc.nextLine()));
-				} catch (Exception e) {
-					e.printStackTrace();
+			BufferedReader reader = open(pathToPrediction);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					try {
+						ctr_prediction.add(Double.parseDouble(line));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
+			} finally {
+				reader.close();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			return Double.MAX_VALUE;
 		}
-		
-		try {
-			Scanner sc = new Scanner(new BufferedReader(new FileReader(
-					pathToSol)));
-			int size = ctr_prediction.size();
-			double wmse = 0.0;
-			for (int i = 0; i < size; i++) {
-				double ctr = Double.parseDouble(sc.nextLine());
-				wmse += Math.pow((ctr - ctr_prediction.get(i)), 2);
-			}
-			wmse /= size;
-			return Math.sqrt(wmse);
-		} catch (Exception e) {
-			e.printStackTrace();
-			return Double.MAX_VALUE;
-		}
+		return eval(pathToSol, ctr_prediction);
 	}
 	
 	
@@ -87,17 +85,21 @@ public class EvalUtil {
 	 */
 	public static double evalBaseLine(String pathToSol, double avg_ctr) {
 		try {
-			Scanner sc = new Scanner(new BufferedReader(new FileReader(
-					pathToSol)));
-			double rmse = 0.0;
-			int count = 0;
-			while(sc.hasNextLine()) {
-				double ctr = Double.parseDouble(sc.nextLine());
-				rmse += Math.pow(ctr - avg_ctr, 2);
-				count++;
+			BufferedReader reader = open(pathToSol);
+			try {
+				double rmse = 0.0;
+				int count = 0;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					double ctr = Double.parseDouble(line);
+					rmse += Math.pow(ctr - avg_ctr, 2);
+					count++;
+				}
+				rmse /= count;
+				return Math.sqrt(rmse);
+			} finally {
+				reader.close();
 			}
-			rmse /= count;
-			return Math.sqrt(rmse);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return Double.MAX_VALUE;
@@ -117,26 +119,78 @@ public class EvalUtil {
 	 */
 	public static double evalWithIncludingList(String pathToSol, ArrayList<Double> ctr_prediction, ArrayList<Boolean> includingList) {
 		try {
-			Scanner sc = new Scanner(new BufferedReader(new FileReader(
-					pathToSol)));
-			int size = ctr_prediction.size();
-			double wmse = 0.0;
-			int total = 0;
-			for (int i = 0; i < size; i++) {
-				String str = sc.nextLine();
-				if (!includingList.get(i))
-					continue;				
-				
-				double ctr = Double.parseDouble(str);
-				wmse += Math.pow((ctr - ctr_prediction.get(i)), 2);
-				total++;
+			BufferedReader reader = open(pathToSol);
+			try {
+				int size = ctr_prediction.size();
+				double wmse = 0.0;
+				int total = 0;
+				for (int i = 0; i < size; i++) {
+					String str = nextLine(reader, pathToSol);
+					if (!includingList.get(i))
+						continue;
+
+					double ctr = Double.parseDouble(str);
+					wmse += Math.pow((ctr - ctr_prediction.get(i)), 2);
+					total++;
+				}
+				wmse /= total;
+				return Math.sqrt(wmse);
+			} finally {
+				reader.close();
 			}
-			wmse /= total;
-			return Math.sqrt(wmse);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return Double.MAX_VALUE;
 		}
 	}
 
+	private static BufferedReader open(String path) throws IOException {
+		return new BufferedReader(new InputStreamReader(IOUtil.open(path)));
+	}
+
+	/**
+	 * @return the next line. Unlike Scanner, BufferedReader reports read
+	 *         errors, e.g. of a truncated gzip file, instead of ending early.
+	 * @throws IOException
+	 *             also at the end of the file.
+	 */
+	private static String nextLine(BufferedReader reader, String path)
+			throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			throw new IOException("Unexpected end of " + path);
+		return line;
+	}
+
+	/**
+	 * Writes the prediction file in the format of the experiments: the rmse
+	 * line followed by the predictions, one per line. The predictions are
+	 * copied from the file a StreamingEvaluator wrote them to, which is then
+	 * deleted.
+	 * 
+	 * @param path
+	 * @param rmse
+	 * @param pathToPrediction
+	 * @throws IOException
+	 */
+	public static void writePredictions(String path, double rmse,
+			String pathToPrediction) throws IOException {
+		OutputStream out = new FileOutputStream(path);
+		try {
+			out.write(("rmse: " + rmse + "\n").getBytes("US-ASCII"));
+			InputStream in = new FileInputStream(pathToPrediction);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) > 0)
+					out.write(buffer, 0, n);
+			} finally {
+				in.close();
+			}
+		} finally {
+			out.close();
+		}
+		if (!new File(pathToPrediction).delete())
+			System.err.println("Warning: cannot delete " + pathToPrediction);
+	}
 }
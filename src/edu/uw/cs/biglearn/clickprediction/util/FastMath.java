@@ -0,0 +1,33 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+/**
+ * Table based approximations of the functions used to score examples.
+ *
+ * @author haijieg
+ *
+ */
+public class FastMath {
+	private static final double RANGE = 16; // sigmoid is tabulated on [-16, 16]
+	private static final int STEPS_PER_UNIT = 128;
+	private static final double[] SIGMOID = new double[(int) (2 * RANGE * STEPS_PER_UNIT) + 2];
+
+	static {
+		for (int i = 0; i < SIGMOID.length; i++) {
+			double x = (double) i / STEPS_PER_UNIT - RANGE;
+			SIGMOID[i] = 1 / (1 + Math.exp(-x));
+		}
+	}
+
+	/**
+	 * @return 1 / (1 + exp(-x)), linearly interpolated from a table. The
+	 *         absolute error is below 1e-6, inputs outside [-16, 16] are
+	 *         clamped.
+	 */
+	public static double sigmoid(double x) {
+		double t = (Math.min(Math.max(x, -RANGE), RANGE) + RANGE)
+				* STEPS_PER_UNIT;
+		int i = (int) t;
+		double frac = t - i;
+		return SIGMOID[i] + frac * (SIGMOID[i + 1] - SIGMOID[i]);
+	}
+}
@@ -15,4 +15,56 @@ public class HashUtil {
 		else
 			return 1;
 	}
+
+	/* Token id used for the per user intercept of personalized features. */
+	public static final int INTERCEPT = Integer.MIN_VALUE;
+	private static final long PERSONAL_SEED = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * Hashes a token id. Use with {@link #hashToRange(long, int)} and
+	 * {@link #hashToSign(long)}.
+	 */
+	public static long hashFeature(int token) {
+		return fmix64(token & 0xffffffffL);
+	}
+
+	/**
+	 * Hashes the personalized feature (userid, token) without building the
+	 * string userid + token.
+	 */
+	public static long hashFeature(int userid, int token) {
+		return fmix64((((long) userid << 32) | (token & 0xffffffffL))
+				^ PERSONAL_SEED);
+	}
+
+	public static int hashToRange(long hash, int upper) {
+		return (int) ((hash >>> 1) % upper);
+	}
+
+	public static int hashToSign(long hash) {
+		return (hash & 1) == 0 ? -1 : 1;
+	}
+
+	/*
+	 * Finalizer of MurmurHash3 x86_32, spreads consecutive keys (e.g. token
+	 * ids) over an open addressing table.
+	 */
+	public static int fmix32(int k) {
+		k ^= k >>> 16;
+		k *= 0x85ebca6b;
+		k ^= k >>> 13;
+		k *= 0xc2b2ae35;
+		k ^= k >>> 16;
+		return k;
+	}
+
+	/* Finalizer of MurmurHash3 x64, a fast mixer with full avalanche. */
+	public static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
 }
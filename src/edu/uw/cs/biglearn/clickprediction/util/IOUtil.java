@@ -0,0 +1,177 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens input files, decompressing them transparently. The format is told
+ * from the first bytes of the file, not from its name:
+ *
+ * - BGZF (bgzip): the blocks are inflated in parallel by a shared pool.
+ *
+ * - gzip, including concatenated members: inflated serially, but on a
+ * read-ahead thread, so that inflating overlaps with parsing.
+ *
+ * - zstd: decompressed by the zstd command in a child process, which also
+ * overlaps with parsing. The JDK has no zstd decoder.
+ *
+ * - anything else is read as is.
+ *
+ * @author haijieg
+ *
+ */
+public class IOUtil {
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int MAGIC_BYTES = 16;
+	/* BGZF blocks in flight per inflating thread. */
+	static final int BLOCKS_PER_THREAD = 4;
+
+	public enum Format {
+		PLAIN, GZIP, BGZF, ZSTD
+	}
+
+	private static ExecutorService inflaters;
+
+	/**
+	 * @return the format of the file at the given path.
+	 * @throws IOException
+	 */
+	public static Format format(String path) throws IOException {
+		byte[] magic = new byte[MAGIC_BYTES];
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			int n = 0;
+			while (n < MAGIC_BYTES) {
+				int read = file.read(magic, n, MAGIC_BYTES - n);
+				if (read < 0)
+					break;
+				n += read;
+			}
+			return format(magic, n);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static Format format(byte[] magic, int length) {
+		if (BgzfInputStream.isBgzf(magic, length))
+			return Format.BGZF;
+		if (length >= 2 && (magic[0] & 0xff) == 0x1f
+				&& (magic[1] & 0xff) == 0x8b)
+			return Format.GZIP;
+		if (length >= 4 && (magic[0] & 0xff) == 0x28
+				&& (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f
+				&& (magic[3] & 0xff) == 0xfd)
+			return Format.ZSTD;
+		return Format.PLAIN;
+	}
+
+	/**
+	 * Opens the file at the given path for reading, decompressing it if
+	 * needed. The stream is buffered.
+	 *
+	 * @param path
+	 * @return the stream of the decompressed bytes.
+	 * @throws IOException
+	 */
+	public static InputStream open(String path) throws IOException {
+		Format format = format(path);
+		if (format == Format.ZSTD)
+			return zstd(path);
+		InputStream in = new BufferedInputStream(new FileInputStream(path),
+				BUFFER_SIZE);
+		switch (format) {
+		case BGZF:
+			int threads = Runtime.getRuntime().availableProcessors();
+			return new BgzfInputStream(in, inflaters(), threads
+					* BLOCKS_PER_THREAD);
+		case GZIP:
+			return new ReadAheadInputStream(new GZIPInputStream(in,
+					BUFFER_SIZE), "gunzip " + path);
+		default:
+			return in;
+		}
+	}
+
+	/**
+	 * @return the shared pool inflating BGZF blocks, one thread per core.
+	 */
+	static synchronized ExecutorService inflaters() {
+		if (inflaters == null) {
+			inflaters = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				private int count;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "inflate-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return inflaters;
+	}
+
+	/**
+	 * Decompresses a zstd file with the zstd command. Its errors go to our
+	 * stderr, and a failure is reported at the end of the stream.
+	 */
+	private static InputStream zstd(final String path) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder("zstd", "-dcq", "--", path);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		final Process process;
+		try {
+			process = builder.start();
+		} catch (IOException e) {
+			throw new IOException("Reading the zstd file " + path
+					+ " needs the zstd command on the PATH", e);
+		}
+		process.getOutputStream().close();
+		return new FilterInputStream(new BufferedInputStream(
+				process.getInputStream(), BUFFER_SIZE)) {
+			private boolean checked;
+
+			@Override
+			public int read() throws IOException {
+				return checkEnd(super.read());
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return checkEnd(super.read(b, off, len));
+			}
+
+			private int checkEnd(int n) throws IOException {
+				if (n < 0 && !checked) {
+					checked = true;
+					int status;
+					try {
+						status = process.waitFor();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while reading "
+								+ path, e);
+					}
+					if (status != 0)
+						throw new IOException("zstd failed on " + path
+								+ " with exit status " + status);
+				}
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				process.destroy();
+			}
+		};
+	}
+}
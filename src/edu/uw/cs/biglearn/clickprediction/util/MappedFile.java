@@ -0,0 +1,95 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapped file of any size. A single MappedByteBuffer can
+ * only address 2GB, so the file is mapped as a list of 1GB segments, each
+ * overlapping the next one by a few bytes so that a multi-byte value starting
+ * in one segment can always be read from that segment.
+ *
+ * Absolute reads do not change any state, so one MappedFile can be shared by
+ * many readers and threads.
+ *
+ * @author haijieg
+ *
+ */
+public class MappedFile {
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private static final int OVERLAP = 8;
+
+	public final String path;
+	private final long length;
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * Maps the whole file at the given path. Compressed files cannot be
+	 * mapped, they must be read with IOUtil.open.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public MappedFile(String path) throws IOException {
+		this.path = path;
+		IOUtil.Format format = IOUtil.format(path);
+		if (format != IOUtil.Format.PLAIN)
+			throw new IOException("Cannot map " + path + ", it is " + format
+					+ " compressed");
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			length = channel.size();
+			int nsegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+			segments = new MappedByteBuffer[nsegments];
+			for (int i = 0; i < nsegments; i++) {
+				long start = (long) i << SEGMENT_BITS;
+				long size = Math.min(length - start, SEGMENT_SIZE + OVERLAP);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						size);
+			}
+		} finally {
+			// the mapping stays valid after the channel is closed.
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the length of the file in bytes.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return the beginning of the first line starting at or after pos, or
+	 *         the length of the file if there is none.
+	 */
+	public long lineStart(long pos) {
+		if (pos <= 0)
+			return 0;
+		while (pos < length && get(pos - 1) != '\n')
+			pos++;
+		return Math.min(pos, length);
+	}
+
+	public byte get(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+	}
+
+	public int getInt(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & SEGMENT_MASK));
+	}
+
+	public long getLong(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+	}
+
+	public double getDouble(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getDouble((int) (pos & SEGMENT_MASK));
+	}
+}
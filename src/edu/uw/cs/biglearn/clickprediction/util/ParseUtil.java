@@ -0,0 +1,94 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+/**
+ * The integer parser shared by the text readers. It parses in place, without
+ * a substring, and stops at the first byte that is not a digit; checking the
+ * separator after the number is left to the caller. Unlike the readers'
+ * separators, the number itself is strict: an empty field or a value
+ * overflowing an int is rejected with a NumberFormatException, like
+ * Integer.valueOf.
+ *
+ * @author haijieg
+ *
+ */
+public final class ParseUtil {
+	// the magnitude of Integer.MIN_VALUE, the largest a number can get.
+	private static final long LIMIT = -(long) Integer.MIN_VALUE;
+
+	/**
+	 * Parses a (possibly negative) integer starting at pos[0] of the string
+	 * and moves pos[0] to the first char after its digits.
+	 *
+	 * @param s
+	 * @param pos
+	 * @return the value.
+	 * @throws NumberFormatException
+	 *             if there are no digits or the value overflows an int.
+	 */
+	public static int parseInt(CharSequence s, int[] pos) {
+		int i = pos[0];
+		int len = s.length();
+		boolean negative = i < len && s.charAt(i) == '-';
+		if (negative)
+			i++;
+		int start = i;
+		long value = 0;
+		for (; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			value = value * 10 + (c - '0');
+			if (value > LIMIT)
+				throw new NumberFormatException("For input string: \"" + s
+						+ "\"");
+		}
+		if (i == start || (!negative && value > Integer.MAX_VALUE))
+			throw new NumberFormatException("For input string: \"" + s + "\"");
+		pos[0] = i;
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Parses a (possibly negative) integer starting at byte pos[0] of the
+	 * file and moves pos[0] to the first byte after its digits.
+	 *
+	 * @param file
+	 * @param pos
+	 * @param end
+	 *            The end of the range to parse, e.g. of the caller's chunk.
+	 * @return the value.
+	 * @throws NumberFormatException
+	 *             if there are no digits or the value overflows an int.
+	 */
+	public static int parseInt(MappedFile file, long[] pos, long end) {
+		long p = pos[0];
+		boolean negative = p < end && file.get(p) == '-';
+		if (negative)
+			p++;
+		long start = p;
+		long value = 0;
+		for (; p < end; p++) {
+			byte b = file.get(p);
+			if (b < '0' || b > '9')
+				break;
+			value = value * 10 + (b - '0');
+			if (value > LIMIT)
+				throw malformed(file, pos[0]);
+		}
+		if (p == start || (!negative && value > Integer.MAX_VALUE))
+			throw malformed(file, pos[0]);
+		pos[0] = p;
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * @param file
+	 * @param pos
+	 * @return the exception to throw for a bad field or separator at byte pos
+	 *         of the file.
+	 */
+	public static NumberFormatException malformed(MappedFile file, long pos) {
+		return new NumberFormatException("Malformed field at byte " + pos
+				+ " of " + file.path);
+	}
+}
@@ -0,0 +1,150 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream ahead on a background thread, e.g. to inflate a gzip
+ * stream while the caller parses the previous buffers. The data goes
+ * through a fixed set of buffers, recycled between the reader thread and the
+ * caller, so at most BUFFERS * BUFFER_SIZE bytes are read ahead.
+ *
+ * @author haijieg
+ *
+ */
+public class ReadAheadInputStream extends InputStream {
+	static final int BUFFERS = 4;
+	static final int BUFFER_SIZE = 1 << 20;
+
+	/* A buffer holding length bytes, length < 0 marks the end. */
+	private static class Buffer {
+		final byte[] data;
+		int length;
+
+		Buffer(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private final InputStream in;
+	private final BlockingQueue<Buffer> free = new ArrayBlockingQueue<Buffer>(
+			BUFFERS);
+	private final BlockingQueue<Buffer> full = new ArrayBlockingQueue<Buffer>(
+			BUFFERS);
+	private final Thread reader;
+	private volatile IOException failure;
+	private Buffer current;
+	private int pos;
+	private boolean eof;
+
+	/**
+	 * Starts reading the stream.
+	 *
+	 * @param in
+	 *            Read by the background thread only; closed by close().
+	 * @param name
+	 *            The name of the reader thread.
+	 */
+	public ReadAheadInputStream(InputStream in, String name) {
+		this.in = in;
+		for (int i = 0; i < BUFFERS; i++)
+			free.add(new Buffer(BUFFER_SIZE));
+		reader = new Thread(new Runnable() {
+			public void run() {
+				readAhead();
+			}
+		}, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void readAhead() {
+		Buffer buffer = null;
+		try {
+			while (true) {
+				buffer = free.take();
+				int n = 0;
+				while (n < buffer.data.length) {
+					int read = in.read(buffer.data, n, buffer.data.length - n);
+					if (read < 0)
+						break;
+					n += read;
+				}
+				buffer.length = (n == 0) ? -1 : n;
+				full.put(buffer);
+				buffer = null;
+				if (n == 0)
+					return;
+			}
+		} catch (InterruptedException e) {
+			return; // closed
+		} catch (IOException e) {
+			failure = e;
+		}
+		// wakes the caller with an end marker.
+		try {
+			if (buffer == null)
+				buffer = free.take();
+			buffer.length = -1;
+			full.put(buffer);
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureData())
+			return -1;
+		return current.data[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureData())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current.data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	private boolean ensureData() throws IOException {
+		if (eof)
+			return false;
+		if (current != null && pos < current.length)
+			return true;
+		if (current != null)
+			free.add(current); // hands the buffer back
+		try {
+			current = full.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading ahead", e);
+		}
+		pos = 0;
+		if (current.length < 0) {
+			eof = true;
+			if (failure != null)
+				throw failure;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		eof = true;
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		in.close();
+	}
+}
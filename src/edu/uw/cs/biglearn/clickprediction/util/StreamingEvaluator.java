@@ -0,0 +1,186 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+
+/**
+ * Evaluates predictions one at a time as they are produced, reading the true
+ * labels from the solution file in lockstep. Nothing is buffered: the memory
+ * use is constant whatever the size of the test data.
+ *
+ * The evaluator computes the RMSE, the log-loss and the AUC over all the
+ * predictions, and separately over the subset of predictions added with
+ * include = true (e.g. the test data of users known from training). The label
+ * of a data point is its CTR, so it counts as a fraction ctr of a positive and
+ * 1 - ctr of a negative example for the log-loss and the AUC. The AUC is
+ * computed from a fixed histogram of the predictions, exact up to BINS.
+ *
+ * The predictions can also be written to a file as they are evaluated.
+ *
+ * @author haijieg
+ *
+ */
+public class StreamingEvaluator {
+	private static final int BINS = 1 << 16;
+	private static final double EPSILON = 1e-15;
+
+	/**
+	 * Running metrics over a set of predictions.
+	 */
+	public static class Metrics {
+		private long count;
+		private double squaredError;
+		private double logLoss;
+		private final double[] positives = new double[BINS];
+		private final double[] negatives = new double[BINS];
+
+		void add(double label, double ctr) {
+			count++;
+			double diff = label - ctr;
+			squaredError += diff * diff;
+			double p = Math.min(Math.max(ctr, EPSILON), 1 - EPSILON);
+			logLoss -= label * Math.log(p) + (1 - label) * Math.log1p(-p);
+			int bin = (int) (p * BINS);
+			positives[bin] += label;
+			negatives[bin] += 1 - label;
+		}
+
+		/**
+		 * @return the number of evaluated predictions.
+		 */
+		public long count() {
+			return count;
+		}
+
+		public double rmse() {
+			return Math.sqrt(squaredError / count);
+		}
+
+		public double logLoss() {
+			return logLoss / count;
+		}
+
+		/**
+		 * @return the probability that a positive is ranked above a negative,
+		 *         counting ties in the same bin as one half.
+		 */
+		public double auc() {
+			double below = 0; // negatives in the lower bins
+			double area = 0;
+			for (int i = 0; i < BINS; i++) {
+				area += positives[i] * (below + negatives[i] / 2);
+				below += negatives[i];
+			}
+			double total = 0;
+			for (int i = 0; i < BINS; i++)
+				total += positives[i];
+			return area / (total * below);
+		}
+
+		@Override
+		public String toString() {
+			return "count: " + count + ", rmse: " + rmse() + ", logloss: "
+					+ logLoss() + ", auc: " + auc();
+		}
+	}
+
+	private final BufferedReader labels;
+	private final Writer predictions; // null if not written
+	private final Metrics all = new Metrics();
+	private final Metrics subset = new Metrics();
+
+	/**
+	 * @param pathToSol
+	 *            The solution file, one label per line in test data order.
+	 * @throws IOException
+	 */
+	public StreamingEvaluator(String pathToSol) throws IOException {
+		this(pathToSol, null);
+	}
+
+	/**
+	 * @param pathToSol
+	 *            The solution file, one label per line in test data order.
+	 * @param pathToPrediction
+	 *            The file to write the predictions to, one per line. Null to
+	 *            not write them.
+	 * @throws IOException
+	 */
+	public StreamingEvaluator(String pathToSol, String pathToPrediction)
+			throws IOException {
+		labels = new BufferedReader(new InputStreamReader(
+				IOUtil.open(pathToSol)), 1 << 16);
+		if (pathToPrediction == null) {
+			predictions = null;
+		} else {
+			try {
+				predictions = new BufferedWriter(new FileWriter(
+						pathToPrediction), 1 << 16);
+			} catch (IOException e) {
+				labels.close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the prediction of the next test data point.
+	 *
+	 * @param ctr
+	 * @throws IOException
+	 */
+	public void add(double ctr) throws IOException {
+		add(ctr, true);
+	}
+
+	/**
+	 * Evaluates the prediction of the next test data point.
+	 *
+	 * @param ctr
+	 * @param include
+	 *            True to also count the prediction in subset().
+	 * @throws IOException
+	 */
+	public void add(double ctr, boolean include) throws IOException {
+		String line = labels.readLine();
+		if (line == null)
+			throw new IOException("More predictions than labels after "
+					+ all.count + " predictions");
+		double label = Double.parseDouble(line);
+		all.add(label, ctr);
+		if (include)
+			subset.add(label, ctr);
+		if (predictions != null)
+			predictions.write(ctr + "\n");
+	}
+
+	/**
+	 * @return the metrics over all the predictions.
+	 */
+	public Metrics all() {
+		return all;
+	}
+
+	/**
+	 * @return the metrics over the predictions added with include = true.
+	 */
+	public Metrics subset() {
+		return subset;
+	}
+
+	/**
+	 * Closes the solution file, and flushes and closes the prediction file.
+	 */
+	public void close() throws IOException {
+		try {
+			labels.close();
+		} finally {
+			if (predictions != null)
+				predictions.close();
+		}
+	}
+}
@@ -26,6 +26,17 @@ public final class StringUtil {
 		return builder.toString();
 	}
 
+	/* Helper function imploding the first len elements of an int array into a single string. */
+	public static String implode(int[] arr, int len, String delim) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			if (i > 0)
+				builder.append(delim);
+			builder.append(arr[i]);
+		}
+		return builder.toString();
+	}
+
 	public static int[] mapArrayStrToInt(String[] in) {
 		int[] out = new int[in.length];
 		for (int i = 0; i < in.length; i++) {
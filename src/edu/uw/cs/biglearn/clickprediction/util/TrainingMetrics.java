@@ -0,0 +1,352 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Throughput and time breakdown of a training run, readable while it runs
+ * through JMX and a periodic CSV dump, without attaching a profiler.
+ *
+ * The training thread calls beginRow() for every row; one row in SAMPLE is
+ * timed stage by stage with lap(), and the time of each stage is estimated
+ * from the timed rows, so the other rows pay for a counter increment only.
+ * The counters are written by the training thread alone and published to
+ * the readers with ordered writes on the timed rows, so the readers lag by
+ * at most SAMPLE rows.
+ *
+ * GC counts and times are those of the whole JVM, allocations those of the
+ * training thread, both since start().
+ *
+ * @author haijieg
+ *
+ */
+public class TrainingMetrics implements TrainingMetricsMXBean {
+	public static final int READ = 0;
+	public static final int HASH = 1;
+	public static final int REGULARIZE = 2;
+	public static final int PRODUCT = 3;
+	public static final int UPDATE = 4;
+	private static final int NUM_STAGES = 5;
+	static final int SAMPLE = 64; // rows per timed row, a power of 2
+
+	// indices of the published counters.
+	private static final int ROWS = NUM_STAGES;
+	private static final int TIMED = NUM_STAGES + 1;
+	private static final int MODEL_ENTRIES = NUM_STAGES + 2;
+	private static final int MODEL_BYTES = NUM_STAGES + 3;
+
+	private static final String HEADER = "time_ms,rows,rows_per_sec,"
+			+ "read_s,hash_s,regularize_s,product_s,update_s,"
+			+ "gc_count,gc_ms,alloc_mb,alloc_mb_per_sec,model_entries,model_mb";
+
+	// owned by the training thread.
+	private long rows;
+	private long timed;
+	private final long[] nanos = new long[NUM_STAGES];
+
+	private final AtomicLongArray published = new AtomicLongArray(
+			NUM_STAGES + 4);
+	private volatile long startNanos;
+	private volatile long endNanos;
+	private volatile long threadId = -1;
+	private volatile long allocatedEnd = -1;
+	private long gcCount0;
+	private long gcMillis0;
+	private long allocated0;
+
+	private ObjectName name;
+	private ScheduledExecutorService dumper;
+	private PrintWriter dump;
+	private long lastDumpNanos;
+	private long lastDumpRows;
+	private long lastDumpAllocated;
+
+	/**
+	 * Starts the clock. Must be called by the training thread, before the
+	 * first row.
+	 */
+	public void start() {
+		gcCount0 = gcCount();
+		gcMillis0 = gcMillis();
+		threadId = Thread.currentThread().getId();
+		allocated0 = threadAllocated(threadId);
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Counts a row.
+	 *
+	 * @return true if the stages of the row must be timed with lap().
+	 */
+	public boolean beginRow() {
+		return (++rows & (SAMPLE - 1)) == 0;
+	}
+
+	/**
+	 * Adds the time since the given time to the stage of a timed row.
+	 *
+	 * @param stage
+	 * @param since
+	 *            The end of the previous lap, or System.nanoTime() at the
+	 *            start of the row.
+	 * @return the current time, the start of the next lap.
+	 */
+	public long lap(int stage, long since) {
+		long now = System.nanoTime();
+		nanos[stage] += now - since;
+		return now;
+	}
+
+	/**
+	 * Ends a timed row, publishing the counters and the model size.
+	 *
+	 * @param modelEntries
+	 * @param modelBytes
+	 */
+	public void endRow(long modelEntries, long modelBytes) {
+		timed++;
+		published.lazySet(MODEL_ENTRIES, modelEntries);
+		published.lazySet(MODEL_BYTES, modelBytes);
+		for (int i = 0; i < NUM_STAGES; i++)
+			published.lazySet(i, nanos[i]);
+		published.lazySet(TIMED, timed);
+		published.lazySet(ROWS, rows);
+	}
+
+	/**
+	 * Publishes the final counters at the end of the training, as endRow()
+	 * does for a timed row. The model size stays the one of the last timed
+	 * row.
+	 */
+	public void finish() {
+		allocatedEnd = getAllocatedBytes();
+		endNanos = System.nanoTime();
+		for (int i = 0; i < NUM_STAGES; i++)
+			published.set(i, nanos[i]);
+		published.set(TIMED, timed);
+		published.set(ROWS, rows);
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 *
+	 * @param label
+	 *            Tells apart the runs of one JVM, e.g. the trainer name.
+	 */
+	public void register(String label) {
+		try {
+			name = new ObjectName(
+					"edu.uw.cs.biglearn.clickprediction:type=TrainingMetrics,name="
+							+ ObjectName.quote(label));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println("Warning: cannot register metrics " + label
+					+ ": " + e);
+			name = null;
+		}
+	}
+
+	/**
+	 * Appends a CSV line of the metrics to the file every period, from a
+	 * daemon thread, until close(). The rates of a line are over the period.
+	 *
+	 * @param path
+	 * @param periodMillis
+	 * @throws IOException
+	 */
+	public synchronized void dumpEvery(String path, long periodMillis)
+			throws IOException {
+		dump = new PrintWriter(new FileWriter(path));
+		dump.println(HEADER);
+		dump.flush();
+		lastDumpNanos = System.nanoTime();
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-dump");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				writeLine();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void writeLine() {
+		if (dump == null)
+			return;
+		long now = System.nanoTime();
+		long rows = getRows();
+		long allocated = getAllocatedBytes();
+		double seconds = Math.max(1, now - lastDumpNanos) / 1e9;
+		StringBuilder line = new StringBuilder(160);
+		line.append(System.currentTimeMillis()).append(',');
+		line.append(rows).append(',');
+		line.append(Math.round((rows - lastDumpRows) / seconds)).append(',');
+		for (int i = 0; i < NUM_STAGES; i++)
+			line.append(String.format(Locale.ROOT, "%.3f", stageSeconds(i)))
+					.append(',');
+		line.append(getGcCount()).append(',');
+		line.append(getGcMillis()).append(',');
+		line.append(allocated >> 20).append(',');
+		line.append(String.format(Locale.ROOT, "%.1f",
+				(allocated - lastDumpAllocated) / seconds / (1 << 20)))
+				.append(',');
+		line.append(getModelEntries()).append(',');
+		line.append(getModelBytes() >> 20);
+		dump.println(line);
+		dump.flush();
+		lastDumpNanos = now;
+		lastDumpRows = rows;
+		lastDumpAllocated = allocated;
+	}
+
+	/**
+	 * Stops the dump after writing a last line, and unregisters the MBean.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (dumper != null) {
+				dumper.shutdown();
+				writeLine();
+				dump.close();
+				dump = null;
+				dumper = null;
+			}
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer()
+						.unregisterMBean(name);
+			} catch (JMException e) {
+				System.err.println("Warning: cannot unregister " + name + ": "
+						+ e);
+			}
+			name = null;
+		}
+	}
+
+	/**
+	 * @return the estimated time of the stage in seconds.
+	 */
+	private double stageSeconds(int stage) {
+		long timed = published.get(TIMED);
+		if (timed == 0)
+			return 0.0;
+		return published.get(stage) / 1e9 * getRows() / timed;
+	}
+
+	public long getRows() {
+		return published.get(ROWS);
+	}
+
+	public double getElapsedSeconds() {
+		long start = startNanos;
+		long end = endNanos;
+		if (start == 0)
+			return 0.0;
+		return ((end != 0 ? end : System.nanoTime()) - start) / 1e9;
+	}
+
+	public double getRowsPerSecond() {
+		double seconds = getElapsedSeconds();
+		return seconds == 0 ? 0.0 : getRows() / seconds;
+	}
+
+	public double getReadSeconds() {
+		return stageSeconds(READ);
+	}
+
+	public double getHashSeconds() {
+		return stageSeconds(HASH);
+	}
+
+	public double getRegularizeSeconds() {
+		return stageSeconds(REGULARIZE);
+	}
+
+	public double getProductSeconds() {
+		return stageSeconds(PRODUCT);
+	}
+
+	public double getUpdateSeconds() {
+		return stageSeconds(UPDATE);
+	}
+
+	public long getGcCount() {
+		return gcCount() - gcCount0;
+	}
+
+	public long getGcMillis() {
+		return gcMillis() - gcMillis0;
+	}
+
+	public long getAllocatedBytes() {
+		if (endNanos != 0)
+			return allocatedEnd; // the thread may be gone.
+		long allocated = threadAllocated(threadId);
+		return (allocated < 0 || allocated0 < 0) ? -1 : allocated - allocated0;
+	}
+
+	public double getAllocatedBytesPerSecond() {
+		double seconds = getElapsedSeconds();
+		long allocated = getAllocatedBytes();
+		return (seconds == 0 || allocated < 0) ? 0.0 : allocated / seconds;
+	}
+
+	public long getModelEntries() {
+		return published.get(MODEL_ENTRIES);
+	}
+
+	public long getModelBytes() {
+		return published.get(MODEL_BYTES);
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+
+	/**
+	 * @return the bytes allocated by the thread, -1 if the JVM does not
+	 *         measure it (it is a HotSpot extension).
+	 */
+	private static long threadAllocated(long id) {
+		if (id < 0)
+			return -1;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+		if (!hotspot.isThreadAllocatedMemorySupported()
+				|| !hotspot.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return hotspot.getThreadAllocatedBytes(id);
+	}
+}
@@ -0,0 +1,51 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+/**
+ * The JMX view of a TrainingMetrics, e.g. in jconsole under
+ * edu.uw.cs.biglearn.clickprediction:type=TrainingMetrics. Times are
+ * estimated from the sampled rows, counts are since the start of the
+ * training.
+ *
+ * @author haijieg
+ *
+ */
+public interface TrainingMetricsMXBean {
+	long getRows();
+
+	double getElapsedSeconds();
+
+	double getRowsPerSecond();
+
+	/**
+	 * Reading and parsing the rows (DataSet.advance). With a
+	 * PrefetchingDataSet, the wait for the rows read and hashed ahead.
+	 */
+	double getReadSeconds();
+
+	/** Hashing the features, for the hashed model. */
+	double getHashSeconds();
+
+	/** Delayed regularization of the weights of the row. */
+	double getRegularizeSeconds();
+
+	/** The weight-feature product. */
+	double getProductSeconds();
+
+	/** The gradient step and the loss bookkeeping. */
+	double getUpdateSeconds();
+
+	long getGcCount();
+
+	long getGcMillis();
+
+	/** The bytes allocated by the training thread, -1 if the JVM cannot tell. */
+	long getAllocatedBytes();
+
+	double getAllocatedBytesPerSecond();
+
+	/** The number of weights: used wTokens entries, or the hashed dim. */
+	long getModelEntries();
+
+	/** The memory of the weight arrays, including the timestamps. */
+	long getModelBytes();
+}
@@ -0,0 +1,169 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash table from int keys to a double weight and an int
+ * timestamp, stored as parallel primitive arrays so that lookups and updates
+ * do not box. Entries are addressed by slot: find() or insert() return the
+ * slot of a key, which stays valid until the next insert() of a new key.
+ *
+ * @author haijieg
+ *
+ */
+public class WeightTable {
+	/** Timestamp of an entry that has never been stamped. */
+	public static final int NEVER = Integer.MIN_VALUE;
+	private static final int EMPTY = Integer.MIN_VALUE; // reserved key
+	private static final double LOAD_FACTOR = 0.6;
+
+	private int[] keys;
+	private double[] weights;
+	private int[] stamps;
+	private int size;
+	private int mask;
+	private int threshold;
+
+	public WeightTable() {
+		this(1024);
+	}
+
+	/**
+	 * @param expected
+	 *            the expected number of keys.
+	 */
+	public WeightTable(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16,
+				(int) (expected / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		weights = new double[capacity];
+		stamps = new int[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * @return the slot of the key, or -1 if the key is not in the table.
+	 */
+	public int find(int key) {
+		int slot = HashUtil.fmix32(key) & mask;
+		while (true) {
+			int k = keys[slot];
+			if (k == key)
+				return slot;
+			if (k == EMPTY)
+				return -1;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Returns the slot of the key, adding it with weight 0 and timestamp
+	 * NEVER if it is not in the table yet.
+	 */
+	public int insert(int key) {
+		if (key == EMPTY)
+			throw new IllegalArgumentException("Reserved key " + key);
+		int slot = HashUtil.fmix32(key) & mask;
+		while (true) {
+			int k = keys[slot];
+			if (k == key)
+				return slot;
+			if (k == EMPTY)
+				break;
+			slot = (slot + 1) & mask;
+		}
+		if (size >= threshold) {
+			rehash(keys.length << 1);
+			return insert(key);
+		}
+		keys[slot] = key;
+		weights[slot] = 0.0;
+		stamps[slot] = NEVER;
+		size++;
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		double[] oldWeights = weights;
+		int[] oldStamps = stamps;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			int key = oldKeys[i];
+			if (key == EMPTY)
+				continue;
+			int slot = HashUtil.fmix32(key) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			keys[slot] = key;
+			weights[slot] = oldWeights[i];
+			stamps[slot] = oldStamps[i];
+		}
+	}
+
+	/**
+	 * @return the weight of the key, 0 if the key is not in the table.
+	 */
+	public double get(int key) {
+		int slot = find(key);
+		return slot < 0 ? 0.0 : weights[slot];
+	}
+
+	public double weight(int slot) {
+		return weights[slot];
+	}
+
+	public void setWeight(int slot, double w) {
+		weights[slot] = w;
+	}
+
+	public int stamp(int slot) {
+		return stamps[slot];
+	}
+
+	public void setStamp(int slot, int stamp) {
+		stamps[slot] = stamp;
+	}
+
+	/**
+	 * @return the number of keys in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of slots; slots in [0, capacity()) with used(slot)
+	 *         true hold the entries.
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	public boolean used(int slot) {
+		return keys[slot] != EMPTY;
+	}
+
+	public int key(int slot) {
+		return keys[slot];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == EMPTY)
+				continue;
+			if (builder.length() > 1)
+				builder.append(", ");
+			builder.append(keys[i]).append('=').append(weights[i]);
+		}
+		return builder.append('}').toString();
+	}
+}
@@ -0,0 +1,94 @@
+package edu.uw.cs.biglearn.clickprediction.util;
+
+import java.util.Random;
+
+/**
+ * Samples ranks 0..n-1 with P(k) proportional to 1 / (k+1)^exponent, by
+ * rejection-inversion (Hormann and Derflinger, "Rejection-inversion to
+ * generate variates from monotone discrete distributions", 1996). Sampling
+ * takes constant expected time and the sampler takes constant memory, so n can
+ * be as large as an int, and a sampler is immutable and can be shared by
+ * threads each using its own Random.
+ *
+ * @author haijieg
+ *
+ */
+public class Zipf {
+	private final int n;
+	private final double exponent;
+	private final double hIntegralX1;
+	private final double hIntegralN;
+	private final double s;
+
+	/**
+	 * @param n
+	 *            The number of ranks.
+	 * @param exponent
+	 *            The exponent of the law, larger is more skewed. Must be
+	 *            positive.
+	 */
+	public Zipf(int n, double exponent) {
+		if (n <= 0 || exponent <= 0)
+			throw new IllegalArgumentException("n=" + n + ", exponent="
+					+ exponent);
+		this.n = n;
+		this.exponent = exponent;
+		hIntegralX1 = hIntegral(1.5) - 1.0;
+		hIntegralN = hIntegral(n + 0.5);
+		s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2));
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * @return a rank in [0, n), 0 being the most frequent.
+	 */
+	public int sample(Random random) {
+		while (true) {
+			double u = hIntegralN + random.nextDouble()
+					* (hIntegralX1 - hIntegralN);
+			double x = hIntegralInverse(u);
+			int k = (int) (x + 0.5);
+			if (k < 1)
+				k = 1;
+			else if (k > n)
+				k = n;
+			if (k - x <= s || u >= hIntegral(k + 0.5) - h(k))
+				return k - 1;
+		}
+	}
+
+	/* h(x) = 1 / x^exponent */
+	private double h(double x) {
+		return Math.exp(-exponent * Math.log(x));
+	}
+
+	/* The integral of h, up to a constant. */
+	private double hIntegral(double x) {
+		double logX = Math.log(x);
+		return helper2((1.0 - exponent) * logX) * logX;
+	}
+
+	private double hIntegralInverse(double x) {
+		double t = x * (1.0 - exponent);
+		if (t < -1.0)
+			t = -1.0; // rounding, x is in the range of hIntegral
+		return Math.exp(helper1(t) * x);
+	}
+
+	/* log(1 + x) / x, stable near 0. */
+	private static double helper1(double x) {
+		if (Math.abs(x) > 1e-8)
+			return Math.log1p(x) / x;
+		return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+	}
+
+	/* (exp(x) - 1) / x, stable near 0. */
+	private static double helper2(double x) {
+		if (Math.abs(x) > 1e-8)
+			return Math.expm1(x) / x;
+		return 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + 0.25 * x));
+	}
+}
@@ -0,0 +1,180 @@
+package edu.uw.cs.biglearn.clickprediction.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a PrefetchingDataSet hands out the same rows as the DataSet it
+ * reads, over several laps of its ring, across a reset() in the middle of a
+ * pass, and up to a read error of the source.
+ *
+ * @author haijieg
+ *
+ */
+public class PrefetchingDataSetTest {
+	private static final int DIM = 12289;
+	private static final int LAP = PrefetchingDataSet.SLOTS
+			* PrefetchingDataSet.BLOCK_ROWS;
+	// more than two laps of the ring, ending in a partial block.
+	private static final int ROWS = 2 * LAP + PrefetchingDataSet.BLOCK_ROWS
+			+ 17;
+
+	private File file;
+
+	@Before
+	public void writeData() throws IOException {
+		file = File.createTempFile("prefetch", ".txt");
+		Random random = new Random(42);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < ROWS; i++) {
+				writer.write(random.nextInt(2) + "|" + (1 + random.nextInt(3))
+						+ "|" + (1 + random.nextInt(3)) + "|"
+						+ random.nextInt(5000) + "|" + random.nextInt(3) + "|"
+						+ random.nextInt(7) + "|" + random.nextInt(50000));
+				for (int n = random.nextInt(8); n > 0; n--)
+					writer.write("," + random.nextInt(50000));
+				writer.write("\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	@After
+	public void deleteData() {
+		file.delete();
+	}
+
+	private DataSet open() throws IOException {
+		return new DataSet(file.getPath(), true, Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void hashedRowsMatchDataSet() throws IOException {
+		for (boolean personal : new boolean[] { false, true }) {
+			DataSet expected = open();
+			DataSet prefetched = new PrefetchingDataSet(open(), DIM, personal);
+			assertEquals(ROWS, assertSameRows(expected, prefetched, personal,
+					Integer.MAX_VALUE));
+			assertFalse(prefetched.hasNext());
+			prefetched.reset();
+		}
+	}
+
+	@Test
+	public void rowsHashedByTheConsumerMatchDataSet() throws IOException {
+		// no dimension, or a different one: the rows are hashed by advance().
+		DataSet prefetched = new PrefetchingDataSet(open());
+		assertEquals(ROWS,
+				assertSameRows(open(), prefetched, false, Integer.MAX_VALUE));
+		prefetched.reset();
+		prefetched = new PrefetchingDataSet(open(), DIM + 2, false);
+		assertEquals(ROWS,
+				assertSameRows(open(), prefetched, false, Integer.MAX_VALUE));
+		prefetched.reset();
+	}
+
+	@Test
+	public void resetInTheMiddleRestartsFromTheFirstRow() throws IOException {
+		DataSet prefetched = new PrefetchingDataSet(open(), DIM, false);
+		int half = LAP + PrefetchingDataSet.BLOCK_ROWS / 2;
+		assertEquals(half, assertSameRows(open(), prefetched, false, half));
+		prefetched.reset();
+		assertEquals(ROWS, assertSameRows(open(), prefetched, false,
+				Integer.MAX_VALUE));
+		prefetched.reset();
+		// and again from the start after a complete pass.
+		assertEquals(ROWS, assertSameRows(open(), prefetched, false,
+				Integer.MAX_VALUE));
+		prefetched.reset();
+	}
+
+	@Test
+	public void readErrorOfTheSourceIsThrown() throws IOException {
+		final int failAt = LAP + 5;
+		final RuntimeException error = new RuntimeException("read error");
+		final DataSet source = open();
+		DataSet failing = new DataSet(source.path, true) {
+			{
+				size = Integer.MAX_VALUE;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return source.hasNext();
+			}
+
+			@Override
+			public DataInstance advance(DataInstance reuse) {
+				if (counter++ == failAt)
+					throw error;
+				return source.advance(reuse);
+			}
+
+			@Override
+			public void reset() {
+				counter = 0;
+				source.reset();
+			}
+		};
+		DataSet prefetched = new PrefetchingDataSet(failing, DIM, false);
+		try {
+			assertSameRows(open(), prefetched, false, Integer.MAX_VALUE);
+			fail("The read error was not thrown");
+		} catch (IllegalStateException e) {
+			assertSame(error, e.getCause());
+		}
+		// the rows before the error were all handed out.
+		assertTrue(prefetched.counter <= failAt);
+		assertTrue(prefetched.counter >= failAt
+				- PrefetchingDataSet.BLOCK_ROWS);
+		prefetched.reset();
+	}
+
+	/**
+	 * Reads up to max rows of both datasets, checking that they hash to the
+	 * same instances.
+	 *
+	 * @return the number of rows read.
+	 */
+	private static int assertSameRows(DataSet expected, DataSet actual,
+			boolean personal, int max) {
+		HashedDataInstance e = new HashedDataInstance(DIM, personal);
+		HashedDataInstance a = new HashedDataInstance(DIM, personal);
+		int rows = 0;
+		while (rows < max && expected.hasNext()) {
+			assertTrue("Missing row " + rows, actual.hasNext());
+			expected.advance(e);
+			actual.advance(a);
+			String row = "row " + rows;
+			assertEquals(row, e.clicked, a.clicked);
+			assertEquals(row, e.depth, a.depth);
+			assertEquals(row, e.position, a.position);
+			assertEquals(row, e.userid, a.userid);
+			assertEquals(row, e.gender, a.gender);
+			assertEquals(row, e.age, a.age);
+			assertArrayEquals(row, Arrays.copyOf(e.hashedIndex, e.numHashed),
+					Arrays.copyOf(a.hashedIndex, a.numHashed));
+			assertArrayEquals(row, Arrays.copyOf(e.hashedValue, e.numHashed),
+					Arrays.copyOf(a.hashedValue, a.numHashed));
+			rows++;
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,217 @@
+package edu.uw.cs.biglearn.clickprediction.serving;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uw.cs.biglearn.clickprediction.analysis.DataSet;
+import edu.uw.cs.biglearn.clickprediction.analysis.LogisticRegression;
+import edu.uw.cs.biglearn.clickprediction.analysis.LogisticRegressionWithHashing;
+
+/**
+ * Saves trained token and hashed models as snapshots, reads them back on the
+ * heap and through a mapping, and checks that they score the testing data as
+ * the trainers' predict() does. Also checks that damaged snapshots are
+ * rejected.
+ *
+ * @author haijieg
+ *
+ */
+public class FrozenModelTest {
+	private static final int DIM = 1031;
+	private static final int TRAINING_ROWS = 5000;
+	private static final int TESTING_ROWS = 1000;
+	private static final double SIGMOID_ERROR = 1e-6; // of FastMath.sigmoid
+
+	private final List<File> files = new ArrayList<File>();
+	private String trainpath;
+	private String testpath;
+
+	@Before
+	public void writeData() throws IOException {
+		Random random = new Random(7);
+		trainpath = writeRows(random, TRAINING_ROWS, true);
+		testpath = writeRows(random, TESTING_ROWS, false);
+	}
+
+	@After
+	public void deleteFiles() {
+		for (File file : files)
+			file.delete();
+	}
+
+	private File newFile(String name) throws IOException {
+		File file = File.createTempFile(name, ".tmp");
+		files.add(file);
+		return file;
+	}
+
+	private String writeRows(Random random, int rows, boolean hasLabel)
+			throws IOException {
+		File file = newFile(hasLabel ? "train" : "test");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < rows; i++) {
+				// a few users and tokens, so the weights move away from 0.
+				if (hasLabel)
+					writer.write((random.nextInt(4) == 0 ? 1 : 0) + "|");
+				writer.write((1 + random.nextInt(3)) + "|"
+						+ (1 + random.nextInt(3)) + "|" + random.nextInt(50)
+						+ "|" + random.nextInt(3) + "|" + random.nextInt(7)
+						+ "|" + random.nextInt(200));
+				for (int n = random.nextInt(6); n > 0; n--)
+					writer.write("," + random.nextInt(200));
+				writer.write("\n");
+			}
+		} finally {
+			writer.close();
+		}
+		return file.getPath();
+	}
+
+	@Test
+	public void tokenModelRoundTrip() throws IOException {
+		LogisticRegression lr = new LogisticRegression();
+		LogisticRegression.Weights weights = lr.train(new DataSet(trainpath,
+				true, Integer.MAX_VALUE), 0.001, 0.05, new ArrayList<Double>());
+		ArrayList<Double> expected = lr.predict(weights, new DataSet(
+				testpath, false, Integer.MAX_VALUE));
+		String path = newFile("token").getPath();
+		weights.save(path);
+
+		FrozenModel loaded = FrozenModel.load(path);
+		FrozenModel mapped = FrozenModel.map(path);
+		int n = ((FrozenTokenModel) loaded).size();
+		assertEquals(FrozenModel.align8(FrozenModel.HEADER_SIZE + 4 + 4 * n)
+				+ 8L * n, new File(path).length());
+		assertScores(expected, loaded, mapped);
+	}
+
+	@Test
+	public void hashedModelRoundTrip() throws IOException {
+		for (boolean personal : new boolean[] { false, true }) {
+			LogisticRegressionWithHashing lr = new LogisticRegressionWithHashing();
+			LogisticRegressionWithHashing.Weights weights = lr.train(
+					new DataSet(trainpath, true, Integer.MAX_VALUE), DIM,
+					0.001, 0.05, new ArrayList<Double>(), personal);
+			ArrayList<Double> expected = lr.predict(weights, new DataSet(
+					testpath, false, Integer.MAX_VALUE), personal);
+			String path = newFile("hashed").getPath();
+			weights.save(path, personal);
+
+			assertEquals(FrozenModel.align8(FrozenModel.HEADER_SIZE + 4) + 8L
+					* DIM, new File(path).length());
+			assertScores(expected, FrozenModel.load(path),
+					FrozenModel.map(path));
+		}
+	}
+
+	/**
+	 * Checks that both models score every testing row as expected, up to the
+	 * error of the table sigmoid, and exactly like each other.
+	 */
+	private void assertScores(ArrayList<Double> expected, FrozenModel loaded,
+			FrozenModel mapped) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(testpath));
+		ScoreRequest request = new ScoreRequest();
+		try {
+			int row = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				request.parse(line);
+				double ctr = loaded.predict(request);
+				assertEquals("row " + row, expected.get(row), ctr,
+						SIGMOID_ERROR);
+				assertEquals("row " + row, ctr, mapped.predict(request), 0);
+				row++;
+			}
+			assertEquals(expected.size(), row);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void wrongMagicIsRejected() throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(snapshot());
+		bytes.putInt(0, FrozenModel.MAGIC + 1);
+		assertRejected(bytes.array());
+	}
+
+	@Test
+	public void wrongVersionIsRejected() throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(snapshot());
+		bytes.putInt(4, FrozenModel.VERSION + 1);
+		assertRejected(bytes.array());
+	}
+
+	@Test
+	public void truncatedSnapshotIsRejected() throws IOException {
+		byte[] bytes = snapshot();
+		for (int length : new int[] { 0, FrozenModel.HEADER_SIZE - 1,
+				FrozenModel.HEADER_SIZE, bytes.length - 8, bytes.length - 1 }) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			assertRejected(truncated);
+		}
+	}
+
+	/**
+	 * @return the bytes of a valid snapshot of a hashed model.
+	 */
+	private byte[] snapshot() throws IOException {
+		LogisticRegressionWithHashing lr = new LogisticRegressionWithHashing();
+		LogisticRegressionWithHashing.Weights weights = lr.new Weights(DIM);
+		String path = newFile("valid").getPath();
+		weights.save(path, false);
+		FrozenModel.load(path); // the damage is all the tests' doing
+		byte[] bytes = new byte[(int) new File(path).length()];
+		FileInputStream in = new FileInputStream(path);
+		try {
+			int n = 0;
+			while (n < bytes.length)
+				n += in.read(bytes, n, bytes.length - n);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private void assertRejected(byte[] bytes) throws IOException {
+		String path = newFile("damaged").getPath();
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		try {
+			FrozenModel.load(path);
+			fail("Loaded a damaged snapshot of " + bytes.length + " bytes");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			FrozenModel.map(path);
+			fail("Mapped a damaged snapshot of " + bytes.length + " bytes");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}